@@ -0,0 +1,102 @@
+package recsys.algorithms.cbf;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorKernels on the JDK Vector API. The project targets Java 8, so this
+ * class lives in its own source folder and is compiled separately with JDK
+ * 17 or later:
+ *
+ * <pre>
+ * javac --release 17 --add-modules jdk.incubator.vector -cp bin -d bin src-vector/recsys/algorithms/cbf/VectorApiKernels.java
+ * </pre>
+ *
+ * VectorKernels loads it by reflection when the JVM runs with
+ * --add-modules jdk.incubator.vector and falls back to its scalar loops
+ * otherwise. Float products are widened to double lanes before they are
+ * summed, so the results differ from the scalar ones only by the summation
+ * order; axpy rounds like the scalar loop and gives the same results.
+ */
+final class VectorApiKernels implements VectorKernels.Accelerated {
+	private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+	// as many bits as F, so a float vector widens into two of these
+	private static final VectorSpecies<Double> D = VectorSpecies.of(double.class, F.vectorShape());
+
+	VectorApiKernels() {
+	}
+
+	@Override
+	public double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		DoubleVector s0 = DoubleVector.zero(D);
+		DoubleVector s1 = DoubleVector.zero(D);
+		int i = 0;
+		for (int end = F.loopBound(length); i < end; i += F.length()) {
+			FloatVector x = FloatVector.fromArray(F, a, aOffset + i);
+			FloatVector y = FloatVector.fromArray(F, b, bOffset + i);
+			s0 = widen(x, 0).fma(widen(y, 0), s0);
+			s1 = widen(x, 1).fma(widen(y, 1), s1);
+		}
+		double s = s0.add(s1).reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			s += (double) a[aOffset + i] * b[bOffset + i];
+		}
+		return s;
+	}
+
+	@Override
+	public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+		DoubleVector s0 = DoubleVector.zero(D);
+		int i = 0;
+		for (int end = D.loopBound(length); i < end; i += D.length()) {
+			s0 = DoubleVector.fromArray(D, a, aOffset + i).fma(DoubleVector.fromArray(D, b, bOffset + i), s0);
+		}
+		double s = s0.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			s += a[aOffset + i] * b[bOffset + i];
+		}
+		return s;
+	}
+
+	@Override
+	public double dot(int[] indices, float[] values, float[] dense) {
+		int length = indices.length;
+		DoubleVector s0 = DoubleVector.zero(D);
+		DoubleVector s1 = DoubleVector.zero(D);
+		int k = 0;
+		for (int end = F.loopBound(length); k < end; k += F.length()) {
+			FloatVector x = FloatVector.fromArray(F, values, k);
+			FloatVector y = FloatVector.fromArray(F, dense, 0, indices, k);
+			s0 = widen(x, 0).fma(widen(y, 0), s0);
+			s1 = widen(x, 1).fma(widen(y, 1), s1);
+		}
+		double s = s0.add(s1).reduceLanes(VectorOperators.ADD);
+		for (; k < length; k++) {
+			s += (double) values[k] * dense[indices[k]];
+		}
+		return s;
+	}
+
+	@Override
+	public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+		int i = 0;
+		for (int end = F.loopBound(length); i < end; i += F.length()) {
+			FloatVector.fromArray(F, y, yOffset + i).add(FloatVector.fromArray(F, x, xOffset + i).mul(alpha))
+					.intoArray(y, yOffset + i);
+		}
+		for (; i < length; i++) {
+			y[yOffset + i] += alpha * x[xOffset + i];
+		}
+	}
+
+	private static DoubleVector widen(FloatVector v, int part) {
+		return (DoubleVector) v.convertShape(VectorOperators.F2D, D, part);
+	}
+
+	@Override
+	public String toString() {
+		return F.length() + " float lanes";
+	}
+}
@@ -0,0 +1,149 @@
+package recsys.algorithms;
+
+/**
+ * Keeps the k highest scored ids seen so far in a min-heap of primitive arrays.
+ * Inserting is O(log k); threshold() gives the score a new id has to beat once
+ * the heap is full, so callers can reject most candidates without touching the
+ * heap. On equal scores the id offered first is kept. NaN scores are ignored.
+ * An accumulator can be reset and reused for the next user.
+ */
+public class TopKAccumulator {
+
+	private final int k;
+	private final int[] ids;
+	private final float[] scores;
+	private int size = 0;
+	private float max = Float.NEGATIVE_INFINITY;
+
+	public TopKAccumulator(int k) {
+		this.k = k;
+		this.ids = new int[k];
+		this.scores = new float[k];
+	}
+
+	public void reset() {
+		size = 0;
+		max = Float.NEGATIVE_INFINITY;
+	}
+
+	public int capacity() {
+		return k;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isFull() {
+		return size == k;
+	}
+
+	/**
+	 * Lowest retained score once the heap is full, negative infinity before.
+	 */
+	public float threshold() {
+		return size == k && k > 0 ? scores[0] : Float.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Whether offer(id, score) would change the retained set.
+	 */
+	public boolean accepts(float score) {
+		return size < k ? score == score : score > scores[0];
+	}
+
+	/**
+	 * Highest score offered so far, retained or not.
+	 */
+	public float max() {
+		return max;
+	}
+
+	/**
+	 * @return true if the id was retained
+	 */
+	public boolean offer(int id, float score) {
+		if (score != score) {
+			return false;
+		}
+		if (score > max) {
+			max = score;
+		}
+		if (size < k) {
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (scores[parent] <= score) {
+					break;
+				}
+				ids[i] = ids[parent];
+				scores[i] = scores[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			scores[i] = score;
+			return true;
+		}
+		if (k == 0 || score <= scores[0]) {
+			return false;
+		}
+		siftDown(id, score);
+		return true;
+	}
+
+	private void siftDown(int id, float score) {
+		int i = 0;
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && scores[right] < scores[child]) {
+				child = right;
+			}
+			if (score <= scores[child]) {
+				break;
+			}
+			ids[i] = ids[child];
+			scores[i] = scores[child];
+			i = child;
+		}
+		ids[i] = id;
+		scores[i] = score;
+	}
+
+	/**
+	 * Copies the retained ids and scores into the given arrays, best first,
+	 * leaving the accumulator unchanged. Returns the number of entries
+	 * written.
+	 */
+	public int sorted(int[] outIds, float[] outScores) {
+		int n = size;
+		System.arraycopy(ids, 0, outIds, 0, n);
+		System.arraycopy(scores, 0, outScores, 0, n);
+		// heap sort of the copy: repeatedly move the minimum to the back
+		for (int end = n - 1; end > 0; end--) {
+			int id = outIds[end];
+			float score = outScores[end];
+			outIds[end] = outIds[0];
+			outScores[end] = outScores[0];
+			int i = 0;
+			int half = end >>> 1;
+			while (i < half) {
+				int child = 2 * i + 1;
+				int right = child + 1;
+				if (right < end && outScores[right] < outScores[child]) {
+					child = right;
+				}
+				if (score <= outScores[child]) {
+					break;
+				}
+				outIds[i] = outIds[child];
+				outScores[i] = outScores[child];
+				i = child;
+			}
+			outIds[i] = id;
+			outScores[i] = score;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,113 @@
+package recsys.algorithms.cbf;
+
+/**
+ * Scores all users against all jobs as one sparse matrix product: the
+ * unit-length user profiles (CSR, users x terms) times the unit-length job
+ * vectors stored term-major (CSC of the job matrix, terms x jobs), so every
+ * product entry is a cosine.
+ *
+ * The product is computed in blocks. A block of users walks the jobs one tile
+ * at a time; for every user the postings of its terms that fall into the tile
+ * are accumulated into a dense tile-sized array, which is then offered to the
+ * user's top-N list. Each user/term keeps a cursor into its posting list, so
+ * postings are read once per user no matter how many tiles there are, and the
+ * users of a block reuse the tile's postings while they are still in cache.
+ * Scores are accumulated in float, so they can differ from the exhaustive
+ * cosine in the last bits.
+ */
+public class BlockedSpMMScorer {
+
+	public static final int DEFAULT_USER_BLOCK = 64;
+	public static final int DEFAULT_JOB_TILE = 4096;
+
+	private final SparseMatrix jobsByTerm;
+	private final int[] jobIds;
+	private final int userBlock;
+	private final int jobTile;
+
+	/**
+	 * @param jobsByTerm
+	 *            unit-length job vectors, one row per term
+	 * @param jobIds
+	 *            job ids by column of jobsByTerm
+	 */
+	public BlockedSpMMScorer(SparseMatrix jobsByTerm, int[] jobIds, int userBlock, int jobTile) {
+		this.jobsByTerm = jobsByTerm;
+		this.jobIds = jobIds;
+		this.userBlock = Math.max(1, userBlock);
+		this.jobTile = Math.max(1, jobTile);
+	}
+
+	public BlockedSpMMScorer(SparseMatrix jobsByTerm, int[] jobIds) {
+		this(jobsByTerm, jobIds, DEFAULT_USER_BLOCK, DEFAULT_JOB_TILE);
+	}
+
+	/**
+	 * Fills results[u] for every row u of users on the CB scoring pool.
+	 *
+	 * @param users
+	 *            unit-length user profiles, one row per user
+	 */
+	public long scoreAll(String label, final SparseMatrix users, final CBTopNJobs[] results) {
+		return CBScoringScheduler.scoreBlocks(label, users.getNumRows(), userBlock,
+				new CBScoringScheduler.BlockScorer() {
+					@Override
+					public long score(int from, int to) {
+						return scoreBlock(users, from, to, results);
+					}
+				});
+	}
+
+	/**
+	 * Multiplies rows [from, to) of users with the job matrix and offers the
+	 * positive entries of every row to results[row].
+	 */
+	public long scoreBlock(SparseMatrix users, int from, int to, CBTopNJobs[] results) {
+		int[] userStart = users.getRowStart();
+		int[] userTerms = users.getColumns();
+		float[] userWeights = users.getValues();
+		int[] termStart = jobsByTerm.getRowStart();
+		int[] postingJobs = jobsByTerm.getColumns();
+		float[] postingWeights = jobsByTerm.getValues();
+		int numTerms = jobsByTerm.getNumRows();
+		int numJobs = jobsByTerm.getNumColumns();
+
+		int base = userStart[from];
+		int[] cursor = new int[userStart[to] - base];
+		int[] end = new int[cursor.length];
+		for (int p = base; p < userStart[to]; p++) {
+			int t = userTerms[p];
+			if (t < numTerms) {
+				cursor[p - base] = termStart[t];
+				end[p - base] = termStart[t + 1];
+			}
+		}
+		float[] acc = new float[Math.min(jobTile, Math.max(1, numJobs))];
+		for (int j0 = 0; j0 < numJobs; j0 += jobTile) {
+			int j1 = Math.min(numJobs, j0 + jobTile);
+			for (int u = from; u < to; u++) {
+				for (int p = userStart[u] - base; p < userStart[u + 1] - base; p++) {
+					float w = userWeights[p + base];
+					int c = cursor[p];
+					int e = end[p];
+					while (c < e && postingJobs[c] < j1) {
+						acc[postingJobs[c] - j0] += w * postingWeights[c];
+						c++;
+					}
+					cursor[p] = c;
+				}
+				CBTopNJobs result = results[u];
+				for (int j = 0; j < j1 - j0; j++) {
+					float s = acc[j];
+					if (s != 0.0f) {
+						acc[j] = 0.0f;
+						if (s > 0.0f && result.accepts(s)) {
+							result.add(jobIds[j0 + j], s);
+						}
+					}
+				}
+			}
+		}
+		return (long) (to - from) * numJobs;
+	}
+}
@@ -1,9 +1,20 @@
 package recsys.algorithms.cbf;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.log4j.Logger;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 
@@ -18,9 +29,62 @@ public class CB extends RecommendationAlgorithm {
 	static Logger log = Logger.getLogger("Author: Luan");
 	private DataSetReader dataSetReader = null;
 	private DocumentProcesser memDocProcessor = new DocumentProcesser();
+	private int indexThreads;
+	private boolean compareHashing;
+	// analyzer the index is built with, part of the names of the files kept next to the dataset
+	private String analyzerName = "simple";
 
 	public CB(String input, String output, String taskId, boolean _trainMode, long startTime) {
 		super(input, output, taskId, startTime);
+		String cacheSize = config.getProperty("cb.vectorcache.mb");
+		if (cacheSize != null) {
+			memDocProcessor.setVectorCacheSize(Long.parseLong(cacheSize) * 1024 * 1024);
+		}
+		memDocProcessor.setScoringMode(config.getProperty("cb.scoring", "exhaustive"));
+		memDocProcessor.setAnnParameters(
+				Integer.parseInt(config.getProperty("cb.ann.tables", "" + LshJobIndex.DEFAULT_TABLES)),
+				Integer.parseInt(config.getProperty("cb.ann.bits", "" + LshJobIndex.DEFAULT_BITS)),
+				Boolean.parseBoolean(config.getProperty("cb.ann.probes", "" + LshJobIndex.DEFAULT_PROBES)),
+				Boolean.parseBoolean(config.getProperty("cb.ann.recall", "false")));
+		memDocProcessor.setQuantizedParameters(
+				Integer.parseInt(config.getProperty("cb.quantized.oversample",
+						"" + QuantizedJobMatrix.DEFAULT_OVERSAMPLE)),
+				Boolean.parseBoolean(config.getProperty("cb.quantized.recall", "false")));
+		indexThreads = Integer.parseInt(config.getProperty("cb.index.threads",
+				"" + Runtime.getRuntime().availableProcessors()));
+		memDocProcessor.setIndexingResources(
+				Double.parseDouble(config.getProperty("cb.index.rambuffer.mb", "256")), indexThreads);
+		if ("vietnamese".equals(config.getProperty("cb.analyzer", "simple"))) {
+			VietnameseSegmenter segmenter = VietnameseSegmenter
+					.getInstance(config.getProperty("cb.analyzer.vietnamese.properties"));
+			if (segmenter != null) {
+				memDocProcessor.useVietnameseSegmentation(segmenter);
+				analyzerName = "vietnamese";
+			}
+		}
+		// "hashing" replaces the term dictionary by a fixed number of signed hash buckets
+		if ("hashing".equals(config.getProperty("cb.vectorizer", "dictionary"))) {
+			memDocProcessor.setHashingBuckets(Integer.parseInt(
+					config.getProperty("cb.hashing.buckets", "" + HashingVectorizer.DEFAULT_BUCKETS)));
+		}
+		compareHashing = Boolean.parseBoolean(config.getProperty("cb.hashing.compare", "false"));
+		memDocProcessor.setProfileWeights(Float.parseFloat(config.getProperty("cb.profile.cv.weight", "1")),
+				Float.parseFloat(config.getProperty("cb.profile.liked.weight", "1")));
+		// "disk" keeps the index next to the dataset and reuses it, "ram" rebuilds it every run;
+		// every analyzer has its own index so that tasks with different analyzers never share one
+		if ("disk".equals(config.getProperty("cb.index", "ram"))) {
+			try {
+				memDocProcessor.setIndexDirectory(new File(this.inputDirectory + "cbindex-" + analyzerName));
+			} catch (IOException e) {
+				log.error(e);
+			}
+		}
+		memDocProcessor.setLsaParameters(
+				Integer.parseInt(config.getProperty("cb.lsa.rank", "" + LatentSemanticModel.DEFAULT_RANK)),
+				Integer.parseInt(config.getProperty("cb.lsa.oversample", "" + LatentSemanticModel.DEFAULT_OVERSAMPLE)),
+				Integer.parseInt(config.getProperty("cb.lsa.iterations", "" + LatentSemanticModel.DEFAULT_ITERATIONS)),
+				memDocProcessor.isPersistent() ? new File(this.inputDirectory + "cblsa-" + analyzerName + ".bin") : null,
+				Boolean.parseBoolean(config.getProperty("cb.lsa.refit", "false")));
 	}
 
 	public void trainModel() {
@@ -41,45 +105,63 @@ public class CB extends RecommendationAlgorithm {
 		}
 	}
 
-	private void indexData() {
-		log.info("create dataset reader");
-		dataSetReader = new DataSetReader(this.inputDirectory);
-		log.info("read cv from dataset");
-		dataSetReader.open(DataSetType.Cv);
-		CvDTO cvdto = null;
-		System.out.println("Index user resume");
-		int count = 0;
-		while ((cvdto = dataSetReader.nextCv()) != null) {
-			String itemId = cvdto.getAccountId() + "";
-			System.out.println("Index document : " + count++);
-			String content = cvdto.getAddress() + ". ";
-			content += cvdto.getCategory() + ". ";
-			content += cvdto.getEducation() + ". ";
-			content += cvdto.getObjective() + ". ";
-			content += cvdto.getSkill() + ". ";
-			content += cvdto.getLanguage() + ". ";
-			memDocProcessor.addCv(itemId, content);
-		}
-		log.info("read cv done");
-		dataSetReader = new DataSetReader(this.inputDirectory);
-		log.info("read jobs from dataset");
-		dataSetReader.open(DataSetType.Job);
-		log.info("Building item profile");
-		JobDTO dto = null;
-		count = 0;
-		while ((dto = dataSetReader.nextJob()) != null) {
-			// if(count > 1000) break;
-			System.out.println("Index document : " + count++);
-			String itemId = dto.getJobId() + "";
-			String content = dto.getJobName() + ". ";
-			content += dto.getRequirement() + ". ";
-			content += dto.getLocation() + ". ";
-			content += dto.getTags() + ". ";
-			content += dto.getDescription() + ". ";
-			content += dto.getCategory() + ". ";
-			memDocProcessor.addJob(itemId, content);
+	/**
+	 * Feeds every CV and job to the index; returns false if reading the
+	 * dataset or indexing a document failed.
+	 */
+	private boolean indexData() {
+		boolean indexed = true;
+		IndexingPipeline pipeline = new IndexingPipeline(memDocProcessor, indexThreads, 256);
+		try {
+			log.info("create dataset reader");
+			dataSetReader = new DataSetReader(this.inputDirectory);
+			log.info("read cv from dataset");
+			dataSetReader.open(DataSetType.Cv);
+			CvDTO cvdto = null;
+			System.out.println("Index user resume");
+			while ((cvdto = dataSetReader.nextCv()) != null) {
+				pipeline.addCv(cvdto.getAccountId() + "", new String[] { cvdto.getAddress(), cvdto.getCategory(),
+						cvdto.getEducation(), cvdto.getObjective(), cvdto.getSkill(), cvdto.getLanguage() });
+			}
+			log.info("read cv done");
+			dataSetReader = new DataSetReader(this.inputDirectory);
+			log.info("read jobs from dataset");
+			dataSetReader.open(DataSetType.Job);
+			log.info("Building item profile");
+			JobDTO dto = null;
+			while ((dto = dataSetReader.nextJob()) != null) {
+				pipeline.addJob(dto.getJobId() + "", new String[] { dto.getJobName(), dto.getRequirement(),
+						dto.getLocation(), dto.getTags(), dto.getDescription(), dto.getCategory() });
+			}
+		} catch (Exception e) {
+			log.error("Reading the dataset for indexing failed", e);
+			indexed = false;
+		} finally {
+			try {
+				pipeline.finish();
+			} catch (Exception e) {
+				log.error("Indexing failed", e);
+				indexed = false;
+			}
 		}
 		log.info("Building item done");
+		if (memDocProcessor.getSegmenter() != null) {
+			log.info("Vietnamese segmentation: " + memDocProcessor.getSegmenter().getStatistics());
+		}
+		return indexed;
+	}
+
+	/**
+	 * Reads the liked jobs of every user into the user profiles; needs the
+	 * term dictionary.
+	 */
+	private void readRatings() throws IOException {
+		if (memDocProcessor.isPersistent()) {
+			// training ratings of an evaluation differ from the full ratings
+			memDocProcessor.setProfileStoreFile(new File(this.inputDirectory + "cbprofiles-" + analyzerName
+					+ (this.isRunningEvaluation ? ".eval.bin" : ".bin")));
+		}
+		memDocProcessor.beginRatings();
 		dataSetReader = new DataSetReader(this.inputDirectory);
 		dataSetReader.open(DataSetType.Score);
 		if (this.isRunningEvaluation) {
@@ -94,51 +176,170 @@ public class CB extends RecommendationAlgorithm {
 			}
 			log.info("Read labeled data is done");
 		}
+		memDocProcessor.endRatings();
+	}
+
+	/**
+	 * Hex MD5 over Cv.txt and Job.txt, or null if they cannot be read.
+	 */
+	private String hashDataset() {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] buffer = new byte[1 << 16];
+			for (String file : new String[] { "Cv.txt", "Job.txt" }) {
+				InputStream in = new FileInputStream(this.inputDirectory + file);
+				try {
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						md.update(buffer, 0, n);
+					}
+				} finally {
+					in.close();
+				}
+			}
+			return new BigInteger(1, md.digest()).toString(16);
+		} catch (IOException | NoSuchAlgorithmException e) {
+			log.error(e);
+			return null;
+		}
+	}
+
+	// one monitor per persistent index: a file lock is held by the whole JVM
+	private static final ConcurrentHashMap<String, Object> indexMonitors = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Indexes the dataset unless the persistent index already holds it.
+	 * Tasks on the same persistent index, in this JVM or another one, take
+	 * turns: the first one updates it and the others wait and then find it
+	 * current. Returns false if the index could not be opened for writing.
+	 */
+	private boolean buildIndex() {
+		if (!memDocProcessor.isPersistent()) {
+			return updateIndex();
+		}
+		File lockFile = new File(this.inputDirectory + "cbindex-" + analyzerName + ".lock");
+		Object monitor = indexMonitors.get(lockFile.getAbsolutePath());
+		if (monitor == null) {
+			Object created = new Object();
+			monitor = indexMonitors.putIfAbsent(lockFile.getAbsolutePath(), created);
+			if (monitor == null) {
+				monitor = created;
+			}
+		}
+		synchronized (monitor) {
+			try {
+				RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+				try {
+					FileLock lock = file.getChannel().lock();
+					try {
+						return updateIndex();
+					} finally {
+						lock.release();
+					}
+				} finally {
+					file.close();
+				}
+			} catch (IOException e) {
+				log.error("Cannot lock " + lockFile, e);
+				return false;
+			}
+		}
+	}
+
+	private boolean updateIndex() {
+		String datasetHash = memDocProcessor.isPersistent() ? hashDataset() : null;
+		if (memDocProcessor.isIndexCurrent(datasetHash)) {
+			log.info("Dataset unchanged, reuse Lucene index");
+			return true;
+		}
+		log.info("open Lucene writer");
+		if (!memDocProcessor.open()) {
+			return false;
+		}
+		log.info("open Lucene writer successful");
+		if (!indexData()) {
+			// a partial index must not be committed as the index of this dataset
+			memDocProcessor.abort();
+			return false;
+		}
+		memDocProcessor.setDatasetHash(datasetHash);
+		memDocProcessor.close();
+		log.info("Close lucene writer");
+		return true;
+	}
+
+	/**
+	 * Indexes the dataset and builds the normalized user and job vectors,
+	 * leaving the reader open for score(); this does not need the CF results,
+	 * so the hybrid recommender runs it next to CF. Returns false if the index
+	 * could not be built.
+	 */
+	public boolean buildModel() throws IOException {
+		if (!buildIndex()) {
+			return false;
+		}
+		log.info("Open lucene reader");
+		memDocProcessor.openReader();
+		log.info("Build term model");
+		memDocProcessor.buildTermCopus();
+		log.info("Calculate df");
+		memDocProcessor.CalculateIdf();
+		log.info("Build user profiles");
+		readRatings();
+		log.info("Cache weight vectors");
+		memDocProcessor.warmVectorCache();
+		log.info("Normalize vectors");
+		memDocProcessor.buildNormalizedModel();
+		return true;
+	}
 
+	/**
+	 * CB scores of the hybrid candidates of every user; needs buildModel()
+	 * and closes the reader.
+	 */
+	public HashMap<String, CbRecommededList> score(HashMap<String, List<RecommendedItem>> cf) throws IOException {
+		// with at least topn CB candidates the hybrid top-N is the same as over all jobs
+		int topN = Integer.valueOf(config.getProperty("topn"));
+		HashMap<String, CbRecommededList> rs = memDocProcessor.getRecommendScoreForSpecificJobs(cf,
+				Integer.parseInt(config.getProperty("hb.cb.candidates", "" + topN)));
+		System.out.println("Get data from cb ok");
+		log.info("Weight vector cache: " + memDocProcessor.getVectorCache().getStatistics());
+		memDocProcessor.closeReader();
+		System.out.println("Close reader");
+		log.info("Close lucene reader");
+		log.info("Finish CB");
+		return rs;
 	}
 
 	public HashMap<String, CbRecommededList> run(HashMap<String, List<RecommendedItem>> cf)
 			throws IOException, InterruptedException {
 		HashMap<String, CbRecommededList> rs = null;
-		log.info("open Lucene writer");
-		if (memDocProcessor.open()) {
-			log.info("open Lucene writer successful");
-			indexData();
-			memDocProcessor.close();
-			log.info("Close lucene writer");
-			log.info("Open lucene reader");
-			memDocProcessor.openReader();
-			log.info("Build term model");
-			memDocProcessor.buildTermCopus();
-			log.info("Calculate df");
-			memDocProcessor.CalculateIdf();
-			rs = memDocProcessor.getRecommendScoreForSpecificJobs(cf);
-			System.out.println("Get data from cb ok");
-			memDocProcessor.closeReader();
-			System.out.println("Close reader");
-			log.info("Close lucene reader");
-			log.info("Finish CB");
+		if (buildModel()) {
+			rs = score(cf);
 		}
-		System.out.println("Return data size " + rs.size());
+		System.out.println("Return data size " + (rs != null ? rs.size() : 0));
 		return rs;
 	}
 
 	public void run() throws IOException, InterruptedException {
 
-		log.info("open Lucene writer");
-		if (memDocProcessor.open()) {
-			log.info("open Lucene writer successful");
-			indexData();
-			memDocProcessor.close();
-			log.info("Close lucene writer");
+		if (buildIndex()) {
 			log.info("Open lucene reader");
 			memDocProcessor.openReader();
 			log.info("Build term model");
 			memDocProcessor.buildTermCopus();
 			log.info("Calculate df");
 			memDocProcessor.CalculateIdf();
+			log.info("Build user profiles");
+			readRatings();
+			log.info("Cache weight vectors");
+			memDocProcessor.warmVectorCache();
+			log.info("Normalize vectors");
+			memDocProcessor.buildNormalizedModel();
 			int topN = Integer.valueOf(config.getProperty("topn"));
 			memDocProcessor.recommendForTopN(topN);
+			reportVectorizer(topN);
+			log.info("Weight vector cache: " + memDocProcessor.getVectorCache().getStatistics());
 			memDocProcessor.closeReader();
 			log.info("Close lucene reader");
 			if (this.isRunningEvaluation) {
@@ -153,32 +354,67 @@ public class CB extends RecommendationAlgorithm {
 		}
 	}
 
+	/**
+	 * With feature hashing, reports the collision rate and, if
+	 * cb.hashing.compare is set, the overlap of the top-N lists with those of
+	 * the exact term dictionary. An evaluation writes them to cbVectorizer.txt
+	 * next to its other results.
+	 */
+	private void reportVectorizer(int topN) {
+		if (!(memDocProcessor.getDictionary() instanceof HashingVectorizer)) {
+			return;
+		}
+		HashingVectorizer hashing = (HashingVectorizer) memDocProcessor.getDictionary();
+		Map<String, Double> report = new LinkedHashMap<String, Double>();
+		report.put("HashBuckets", (double) hashing.size());
+		report.put("HashTerms", (double) hashing.getNumTerms());
+		report.put("HashCollisionRate", hashing.getCollisionRate());
+		if (compareHashing) {
+			try {
+				report.put("HashOverlap@" + topN, memDocProcessor.compareWithDictionary(topN));
+			} catch (IOException e) {
+				log.error(e);
+			}
+		}
+		for (Map.Entry<String, Double> e : report.entrySet()) {
+			log.info(e.getKey() + " = " + e.getValue());
+		}
+		if (this.isRunningEvaluation) {
+			try {
+				FileWriter fw = new FileWriter(outputDirectory + "cbVectorizer.txt");
+				for (Map.Entry<String, Double> e : report.entrySet()) {
+					fw.write(e.getKey() + "\t" + e.getValue() + "\n");
+				}
+				fw.close();
+			} catch (IOException e) {
+				log.error(e);
+			}
+		}
+	}
+
 	private void writeFile(String path, HashMap<String, CBTopNJobs> rss) {
 		try {
 			FileWriter fw = new FileWriter(path + "Score.txt", true);
 			System.out.println("Start writing result!");
+			int[] job = new int[Integer.valueOf(config.getProperty("topn"))];
+			float[] score = new float[job.length];
+			boolean writeToDB = this.isWriteToDB();
+			StringBuilder sql = new StringBuilder("insert into rankedlist(Algorithm, AccountId, JobId, Prediction) values ");
+			boolean hasRows = false;
 			for (String i : rss.keySet()) {
-				double max = rss.get(i).max_score;
-				int topN = rss.get(i).topN;
-				double[] score = rss.get(i).TopNscore;
-				String[] job = rss.get(i).TopNjob;
+				double max = rss.get(i).getMaxScore();
+				int topN = rss.get(i).sorted(job, score);
 				for (int k = 0; k < topN; k++) {
-					fw.append(i + "\t" + job[k] + "\t" + (1.0d + ((score[k] / max) * 4.0d)) + "\r\n");
+					double prediction = 1.0d + ((score[k] / max) * 4.0d);
+					fw.append(i + "\t" + job[k] + "\t" + prediction + "\r\n");
+					if (writeToDB) {
+						sql.append("('cb', " + i + "," + job[k] + "," + prediction + "),");
+						hasRows = true;
+					}
 				}
 			}
-			if (this.isWriteToDB()) {
+			if (writeToDB && hasRows) {
 				this.setupDBConnection("recsys");
-				String sql = "insert into rankedlist(Algorithm, AccountId, JobId, Prediction) values ";
-				for (String i : rss.keySet()) {
-					double max = rss.get(i).max_score;
-					int topN = rss.get(i).topN;
-					double[] score = rss.get(i).TopNscore;
-					String[] job = rss.get(i).TopNjob;
-					for (int k = 0; k < topN; k++) {
-						fw.append(i + "\t" + job[k] + "\t" + (1.0d + ((score[k] / max) * 4.0d)) + "\r\n");
-						sql += "('cb', " + i + "," + job[k] + "," + (1.0d + ((score[k] / max) * 4.0d)) + "),";
-					}
-				}
 				System.out.println(sql.substring(0, sql.length() - 1));
 				this.updateDB(sql.substring(0, sql.length() - 1));
 			}
@@ -0,0 +1,114 @@
+package recsys.algorithms.cbf;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.log4j.Logger;
+
+import utils.WorkerPool;
+
+/**
+ * Runs CB scoring on the long-lived fork/join pool shared by every CB run and
+ * by the parallel CF stages (WorkerPool).
+ * The user range is split into blocks; a block scores its users against the
+ * jobs and keeps the per-user results it owns, so no result structure is
+ * shared between threads. Callers collect the per-user results after the
+ * pool returns.
+ */
+public class CBScoringScheduler {
+	private static Logger log = Logger.getLogger("Author: Luan");
+
+	private static final ForkJoinPool POOL = WorkerPool.getShared();
+
+	/**
+	 * Scores one user, identified by its position in the caller's user array.
+	 */
+	public interface UserScorer {
+		/**
+		 * @return number of (user, job) pairs scored
+		 */
+		long score(int user) throws Exception;
+	}
+
+	/**
+	 * Scores a contiguous range of users at once, for kernels that share work
+	 * between the users of a block.
+	 */
+	public interface BlockScorer {
+		/**
+		 * @return number of (user, job) pairs scored
+		 */
+		long score(int from, int to) throws Exception;
+	}
+
+	public static ForkJoinPool getPool() {
+		return POOL;
+	}
+
+	/**
+	 * Scores users [0, numUsers) in parallel and logs the throughput in
+	 * pairs/sec under the given label. Returns the number of pairs scored.
+	 */
+	public static long scoreUsers(String label, int numUsers, final UserScorer scorer) {
+		int blockSize = Math.max(1, numUsers / (POOL.getParallelism() * 8));
+		return scoreBlocks(label, numUsers, blockSize, new BlockScorer() {
+			@Override
+			public long score(int from, int to) {
+				long pairs = 0;
+				for (int u = from; u < to; u++) {
+					try {
+						pairs += scorer.score(u);
+					} catch (Exception e) {
+						log.error(e);
+					}
+				}
+				return pairs;
+			}
+		});
+	}
+
+	/**
+	 * Hands users [0, numUsers) to the scorer in blocks of at most blockSize
+	 * users and logs the throughput like scoreUsers.
+	 */
+	public static long scoreBlocks(String label, int numUsers, int blockSize, BlockScorer scorer) {
+		long start = System.nanoTime();
+		long pairs = POOL.invoke(new UserBlock(scorer, 0, numUsers, Math.max(1, blockSize)));
+		double seconds = (System.nanoTime() - start) / 1e9;
+		log.info(label + ": " + numUsers + " users, " + pairs + " pairs in " + seconds + " s ("
+				+ (seconds > 0 ? (long) (pairs / seconds) : pairs) + " pairs/sec)");
+		return pairs;
+	}
+
+	private static class UserBlock extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+		private final BlockScorer scorer;
+		private final int from;
+		private final int to;
+		private final int blockSize;
+
+		UserBlock(BlockScorer scorer, int from, int to, int blockSize) {
+			this.scorer = scorer;
+			this.from = from;
+			this.to = to;
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		protected Long compute() {
+			if (to - from > blockSize) {
+				int mid = (from + to) >>> 1;
+				UserBlock left = new UserBlock(scorer, from, mid, blockSize);
+				left.fork();
+				long right = new UserBlock(scorer, mid, to, blockSize).compute();
+				return right + left.join();
+			}
+			try {
+				return scorer.score(from, to);
+			} catch (Exception e) {
+				log.error(e);
+				return 0L;
+			}
+		}
+	}
+}
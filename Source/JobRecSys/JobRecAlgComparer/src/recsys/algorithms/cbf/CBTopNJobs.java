@@ -1,38 +1,45 @@
 package recsys.algorithms.cbf;
 
-public class CBTopNJobs {
+import recsys.algorithms.TopKAccumulator;
+
+/**
+ * Top-N jobs of one user. Only jobs with a positive score are kept.
+ */
+public class CBTopNJobs extends TopKAccumulator {
 
 	public int topN;
-	public double[] TopNscore;
-	public String[] TopNjob;
-	public double max_score = 0.0d;
-	
+
 	public CBTopNJobs(int _topN)
 	{
+		super(_topN);
 		topN = _topN;
-		TopNscore = new double[_topN];
-		TopNjob = new String[_topN];
-		topN = _topN;		
-		for (int i = 0; i < _topN; i++) {
-			TopNjob[i] = "";
-			TopNscore[i] = 0.0d;
-		}
 	}
 
 	public void add(String jobId, double value)
-	{	
-		int i = 0;
-		int minIndex = 0;
-		for (i = 0; i < topN; i++) {
-			if (value > TopNscore[i]) {				
-				max_score = value > max_score ? value : max_score;			
-			}
-			if(TopNscore[minIndex] > TopNscore[i])
-			{
-				minIndex = i;
-			}
+	{
+		add(Integer.parseInt(jobId), value);
+	}
+
+	public void add(int jobId, double value)
+	{
+		if (value > 0) {
+			offer(jobId, (float) value);
 		}
-		TopNjob[minIndex] = jobId;
-		TopNscore[minIndex] = value;
+	}
+
+	/**
+	 * Score a job has to beat to enter the list.
+	 */
+	public double minScore()
+	{
+		return isFull() ? threshold() : 0.0d;
+	}
+
+	/**
+	 * Highest score added so far, 0 when no job was kept.
+	 */
+	public double getMaxScore()
+	{
+		return size() > 0 ? max() : 0.0d;
 	}
 }
@@ -1,62 +1,130 @@
 package recsys.algorithms.cbf;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
+/**
+ * Candidate jobs of one user for the hybrid recommender: the CB score of each
+ * job next to its CF rating ("original" score, 0 when CF did not recommend
+ * the job), in primitive arrays by position.
+ */
 public class CbRecommededList {
-	private ArrayList<String> jobIdList = new ArrayList<String>();
-	private ArrayList<Double> scoreList = new ArrayList<Double>();
+	private int[] jobIds = new int[16];
+	private double[] scores = new double[16];
+	private double[] originalScores = new double[16];
+	private int size = 0;
+
 	public ArrayList<Double> getScoreList() {
-		return scoreList;
+		return toList(scores);
 	}
 
 	public ArrayList<Double> getOriginalScoreList() {
-		return originalScoreList;
+		return toList(originalScores);
 	}
 
 	public double getMax_score() {
 		return max_score;
 	}
 
-	private ArrayList<Double> originalScoreList = new ArrayList<Double>();
-
 	public ArrayList<String> getJobsArray() {
-		return this.jobIdList;
+		ArrayList<String> rs = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			rs.add(String.valueOf(jobIds[i]));
+		}
+		return rs;
 	}
 
 	public ArrayList<Double> getScoreArray() {
-		return this.scoreList;
+		return getScoreList();
 	}
 
-	
-	public void add(String jobIds, double original) {
-		jobIdList.add(jobIds);
-		scoreList.add(0.0d);
-		originalScoreList.add(original);
+	public int size() {
+		return size;
+	}
+
+	public int getJobId(int index) {
+		return jobIds[index];
+	}
+
+	public double getScore(int index) {
+		return scores[index];
+	}
+
+	public double getOriginalScore(int index) {
+		return originalScores[index];
+	}
+
+	private ArrayList<Double> toList(double[] values) {
+		ArrayList<Double> rs = new ArrayList<Double>(size);
+		for (int i = 0; i < size; i++) {
+			rs.add(values[i]);
+		}
+		return rs;
 	}
 
 	public double max_score = 0.0; 
-	
-	public void update(String jobId, double score) {
-		if(score > max_score)
-		{			
+
+	/**
+	 * Appends a candidate; max_score follows the largest CB score.
+	 */
+	public void add(int jobId, double score, double original) {
+		if (size == jobIds.length) {
+			jobIds = Arrays.copyOf(jobIds, size * 2);
+			scores = Arrays.copyOf(scores, size * 2);
+			originalScores = Arrays.copyOf(originalScores, size * 2);
+		}
+		if (score > max_score) {
 			max_score = score;
 		}
-		for (int i = 0; i < this.jobIdList.size(); i++) {
-			if (jobIdList.get(i).equals(jobId)) {
-				scoreList.set(i, score);
+		jobIds[size] = jobId;
+		scores[size] = score;
+		originalScores[size++] = original;
+	}
+
+	/**
+	 * Position of the job, -1 if it is not a candidate. Lists are short, so
+	 * this is a linear scan.
+	 */
+	public int indexOf(int jobId) {
+		for (int i = 0; i < size; i++) {
+			if (jobIds[i] == jobId) {
+				return i;
 			}
 		}
+		return -1;
+	}
+
+	/**
+	 * Sets the CB score of the job stored at the given position.
+	 */
+	public void set(int index, double score) {
+		if(score > max_score)
+		{			
+			max_score = score;
+		}
+		scores[index] = score;
 	}
 
+	/**
+	 * Sets the CF rating of the job stored at the given position.
+	 */
+	public void setOriginal(int index, double original) {
+		originalScores[index] = original;
+	}
 	
 	public ArrayList<Double> getHybridValue(double anpha) {
-		ArrayList<Double> rs = new ArrayList<Double>();
-		for(int i = 0 ; i < this.scoreList.size(); i++)
-		{
-			double new_score = 1.0d + (this.scoreList.get(i) / this.max_score) * 4.0d;
-			new_score =  originalScoreList.get(i) * anpha + (1.0d - anpha) * new_score;
-			rs.add(new_score);
+		return toList(getHybridValues(anpha, null));
+	}
+
+	/**
+	 * Hybrid score of every job by position, written to out when it is large
+	 * enough, otherwise to a new array.
+	 */
+	public double[] getHybridValues(double anpha, double[] out) {
+		if (out == null || out.length < size) {
+			out = new double[size];
 		}
-		return rs;
+		VectorKernels.blend(originalScores, scores, size, max_score, anpha, out);
+		return out;
 	}
 }
@@ -1,32 +1,149 @@
 package recsys.algorithms.cbf;
 
+import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.math3.linear.RealVector;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.Version;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 
 public class DocumentProcesser extends DocumentSimilarityTFIDF {
 	private static Logger log = Logger.getLogger("Author: Luan");
 
+	// stored fields identifying a document; Key ("job:12") is only indexed
+	public static final String ID = "Id";
+	public static final String TYPE = "Type";
+	public static final String HASH = "Hash";
+	public static final String KEY = "Key";
+	public static final String TYPE_CV = "cv";
+	public static final String TYPE_JOB = "job";
+
+	// commit user data of a persistent index
+	public static final String COMMIT_DATASET = "dataset";
+	public static final String COMMIT_ANALYZER = "analyzer";
+
+	private static final Set<String> KEY_FIELDS = new HashSet<String>(Arrays.asList(ID, TYPE, HASH));
+
 	public DocumentProcesser() {
 		_directory = new RAMDirectory();
 
 	}
 
+	private boolean persistent = false;
+	private String datasetHash = null;
+
+	/*
+	 * Content hashes of the documents in the index when the writer was opened;
+	 * entries are removed as the dataset is replayed, whatever is left at
+	 * close() is no longer in the dataset. addJob and addCv may be called
+	 * from several threads as long as all documents with the same id go
+	 * through the same thread.
+	 */
+	private ConcurrentHashMap<String, String> indexedHashes = new ConcurrentHashMap<String, String>();
+	private Set<String> seenKeys = ConcurrentHashMap.newKeySet();
+	private AtomicInteger written = new AtomicInteger();
+	private AtomicInteger unchanged = new AtomicInteger();
+	private AtomicInteger replaced = new AtomicInteger();
+
+	/**
+	 * Keeps the index in dir instead of memory so that later runs on the same
+	 * dataset can reuse it.
+	 */
+	public void setIndexDirectory(File dir) throws IOException {
+		_directory = FSDirectory.open(dir);
+		persistent = true;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * Hash of the dataset being indexed, recorded in the index by close().
+	 */
+	public void setDatasetHash(String datasetHash) {
+		this.datasetHash = datasetHash;
+	}
+
+	/**
+	 * Whether the persistent index was built from a dataset with this hash by
+	 * the current analyzer, in which case indexing can be skipped.
+	 */
+	public boolean isIndexCurrent(String datasetHash) {
+		if (!persistent || datasetHash == null) {
+			return false;
+		}
+		Map<String, String> data = readCommitData();
+		return data != null && datasetHash.equals(data.get(COMMIT_DATASET))
+				&& getAnalyzerName().equals(data.get(COMMIT_ANALYZER));
+	}
+
+	private Map<String, String> readCommitData() {
+		try {
+			if (!DirectoryReader.indexExists(_directory)) {
+				return null;
+			}
+			DirectoryReader r = DirectoryReader.open(_directory);
+			try {
+				return r.getIndexCommit().getUserData();
+			} finally {
+				r.close();
+			}
+		} catch (IOException e) {
+			log.error(e);
+			return null;
+		}
+	}
+
+	// content hash of every document by doc id, set by openReader()
+	private String[] docHashes;
+
+	private String getAnalyzerName() {
+		return analyzer.getClass().getName();
+	}
+
+	/**
+	 * Hex MD5 of the given text, used to detect changed documents.
+	 */
+	public static String contentHash(String content) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			return new BigInteger(1, md.digest(content.getBytes(StandardCharsets.UTF_8))).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(content.hashCode());
+		}
+	}
+
 	private HashMap<String, ArrayList<Integer>> rating = new HashMap<String, ArrayList<Integer>>();
 	private HashMap<String, Integer> users = new HashMap<String, Integer>();
 	private HashMap<String, Integer> jobs = new HashMap<String, Integer>();
@@ -39,8 +156,6 @@ public class DocumentProcesser extends DocumentSimilarityTFIDF {
 		this.jobs = jobs;
 	}
 
-	private int currentIndex = 0;
-
 	public Set<String> getListUsers() {
 		return users.keySet();
 	}
@@ -60,247 +175,814 @@ public class DocumentProcesser extends DocumentSimilarityTFIDF {
 			rating.put(user, userLike);
 
 		}
+		if (profileStore != null && profileStore.isActive()) {
+			try {
+				profileStore.addRating(user, job);
+			} catch (IOException e) {
+				log.error(e);
+			}
+		}
+	}
+
+	private UserProfileStore profileStore = null;
+	private File profileFile = null;
+	private float cvWeight = 1.0f;
+	private float likedWeight = 1.0f;
+
+	/**
+	 * Weights of the CV and of every liked job in a user profile.
+	 */
+	public void setProfileWeights(float cvWeight, float likedWeight) {
+		this.cvWeight = cvWeight;
+		this.likedWeight = likedWeight;
+	}
+
+	/**
+	 * File the user profiles are kept in between runs.
+	 */
+	public void setProfileStoreFile(File profileFile) {
+		this.profileFile = profileFile;
+	}
+
+	/**
+	 * Starts streaming ratings into the user profile store; needs the term
+	 * dictionary, so call it after CalculateIdf().
+	 */
+	public void beginRatings() throws IOException {
+		profileStore = new UserProfileStore(cvWeight, likedWeight, getAnalyzerName() + "|" + dictionary.getName());
+		if (profileFile != null) {
+			try {
+				profileStore.load(profileFile, dictionary);
+			} catch (IOException e) {
+				log.error("Cannot read stored user profiles", e);
+			}
+		}
+		profileStore.beginRatings(users, jobs, docHashes, new UserProfileStore.DocumentSource() {
+			@Override
+			public SparseVector termFrequencies(int docId) throws IOException {
+				return getSparseTermFrequencies(reader, docId);
+			}
+		});
+	}
+
+	public void endRatings() throws IOException {
+		profileStore.endRatings();
+		if (profileFile != null) {
+			profileStore.save(profileFile, dictionary);
+		}
+	}
+
+	/**
+	 * Builds the profile store from the ratings added so far when they were
+	 * not streamed between beginRatings() and endRatings().
+	 */
+	private void ensureProfileStore() throws IOException {
+		if (profileStore != null) {
+			if (profileStore.isActive()) {
+				endRatings();
+			}
+			return;
+		}
+		HashMap<Integer, String> jobIds = new HashMap<Integer, String>(jobs.size() * 2);
+		for (Map.Entry<String, Integer> e : jobs.entrySet()) {
+			jobIds.put(e.getValue(), e.getKey());
+		}
+		beginRatings();
+		for (Map.Entry<String, ArrayList<Integer>> e : rating.entrySet()) {
+			for (int doc : e.getValue()) {
+				profileStore.addRating(e.getKey(), jobIds.get(doc));
+			}
+		}
+		endRatings();
 	}
 
 	private Analyzer analyzer = new SimpleAnalyzer(Version.LUCENE_CURRENT);
-	private IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_CURRENT, analyzer);
+	private VietnameseSegmenter segmenter = null;
+	private double ramBufferMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+	private int indexingThreads = IndexWriterConfig.DEFAULT_MAX_THREAD_STATES;
+
+	/**
+	 * Indexing buffer of the writer and the number of threads expected to
+	 * add documents concurrently; takes effect on the next open().
+	 */
+	public void setIndexingResources(double ramBufferMB, int threads) {
+		this.ramBufferMB = ramBufferMB;
+		this.indexingThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Segments Vietnamese compound words before indexing and indexes the
+	 * segmented words as single terms; takes effect on the next open().
+	 */
+	public void useVietnameseSegmentation(VietnameseSegmenter segmenter) {
+		this.segmenter = segmenter;
+		this.analyzer = new VietnameseAnalyzer(Version.LUCENE_CURRENT);
+	}
+
+	public VietnameseSegmenter getSegmenter() {
+		return segmenter;
+	}
+
+	/**
+	 * A CV or job field value as it should go into the document content:
+	 * segmented when Vietnamese segmentation is on, unchanged otherwise.
+	 * Called by the indexing workers, so it has to be thread safe.
+	 */
+	public String prepareField(String value) {
+		return segmenter != null ? segmenter.segment(value) : value;
+	}
 	private IndexWriter writer;
 
+	/**
+	 * Opens the writer. An existing index built by the same analyzer is
+	 * updated in place: documents whose content hash did not change are
+	 * skipped, changed ones are replaced and missing ones deleted on close().
+	 */
 	public boolean open() {
 		try {
+			indexedHashes.clear();
+			seenKeys.clear();
+			written.set(0);
+			unchanged.set(0);
+			replaced.set(0);
+			Map<String, String> data = readCommitData();
+			IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_CURRENT, analyzer);
+			iwc.setRAMBufferSizeMB(ramBufferMB);
+			iwc.setMaxThreadStates(indexingThreads);
+			// forceMergeDeletes() in close() has to leave no deleted document behind
+			TieredMergePolicy mergePolicy = new TieredMergePolicy();
+			mergePolicy.setForceMergeDeletesPctAllowed(0.0d);
+			iwc.setMergePolicy(mergePolicy);
+			if (data != null && getAnalyzerName().equals(data.get(COMMIT_ANALYZER))) {
+				loadIndexedHashes();
+				iwc.setOpenMode(OpenMode.APPEND);
+			} else {
+				iwc.setOpenMode(OpenMode.CREATE);
+			}
 			writer = new IndexWriter(_directory, iwc);
 			return true;
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
+			log.error(e);
 			return false;
 		}
 	}
 
+	private void loadIndexedHashes() throws IOException {
+		DirectoryReader r = DirectoryReader.open(_directory);
+		try {
+			Bits live = MultiFields.getLiveDocs(r);
+			for (int i = 0; i < r.maxDoc(); i++) {
+				if (live == null || live.get(i)) {
+					Document d = r.document(i, KEY_FIELDS);
+					indexedHashes.put(d.get(TYPE) + ":" + d.get(ID), d.get(HASH));
+				}
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Discards everything written since open(), leaving the index as it was
+	 * at the last commit; used when indexing failed part way.
+	 */
+	public void abort() {
+		try {
+			indexedHashes.clear();
+			writer.rollback();
+			log.info("Index update rolled back");
+		} catch (IOException e) {
+			log.error("Cannot roll back the index", e);
+		}
+	}
+
 	public void close() {
 		try {
+			int removed = indexedHashes.size();
+			for (String key : indexedHashes.keySet()) {
+				writer.deleteDocuments(new Term(KEY, key));
+			}
+			indexedHashes.clear();
+			if (removed + replaced.get() > 0) {
+				// document frequencies count deleted documents until merged away
+				writer.forceMergeDeletes();
+			}
+			Map<String, String> data = new HashMap<String, String>();
+			data.put(COMMIT_ANALYZER, getAnalyzerName());
+			if (datasetHash != null) {
+				data.put(COMMIT_DATASET, datasetHash);
+			}
+			writer.setCommitData(data);
 			writer.close();
+			log.info("Index updated: " + written + " documents written, " + unchanged + " unchanged, " + removed
+					+ " removed");
 		} catch (Exception e) {
+			log.error(e);
+		}
+	}
 
+	/**
+	 * Opens the reader and maps user and job ids to Lucene document ids from
+	 * the stored fields.
+	 */
+	@Override
+	public void openReader() throws IOException {
+		super.openReader();
+		users.clear();
+		jobs.clear();
+		jobModel = null;
+		userModel = null;
+		profileStore = null;
+		docHashes = new String[reader.maxDoc()];
+		Bits live = MultiFields.getLiveDocs(reader);
+		for (int i = 0; i < reader.maxDoc(); i++) {
+			if (live == null || live.get(i)) {
+				Document d = reader.document(i, KEY_FIELDS);
+				docHashes[i] = d.get(HASH);
+				if (TYPE_JOB.equals(d.get(TYPE))) {
+					jobs.put(d.get(ID), i);
+				} else {
+					users.put(d.get(ID), i);
+				}
+			}
 		}
+		N = reader.numDocs();
 	}
 
-	private int countTask = 0;
+	// "exhaustive" scores every (user, job) pair, "inverted" walks posting
+	// lists, "spmm" multiplies the user and job matrices block by block, "ann"
+	// only scores the jobs an LSH index returns as candidates, "quantized"
+	// rescores the best jobs of an int8 job matrix, "lsa" scores dense
+	// embeddings from a truncated SVD
+	private String scoringMode = "exhaustive";
 
-	public HashMap<String, CBTopNJobs> topNRecommendResult = new HashMap<String, CBTopNJobs>();
+	private int annTables = LshJobIndex.DEFAULT_TABLES;
+	private int annBits = LshJobIndex.DEFAULT_BITS;
+	private boolean annProbes = LshJobIndex.DEFAULT_PROBES;
+	private boolean annReportRecall = false;
+	private int quantizedOversample = QuantizedJobMatrix.DEFAULT_OVERSAMPLE;
+	private boolean quantizedReportRecall = false;
+	private int lsaRank = LatentSemanticModel.DEFAULT_RANK;
+	private int lsaOversample = LatentSemanticModel.DEFAULT_OVERSAMPLE;
+	private int lsaIterations = LatentSemanticModel.DEFAULT_ITERATIONS;
+	private File lsaModelFile = null;
+	private boolean lsaRefit = false;
+	private LatentSemanticModel latentModel;
 
-	public HashMap<String, CbRecommededList> recommendResult = new HashMap<String, CbRecommededList>();
-	
-	public void recommendForTopN(int topN) {
+	public String getScoringMode() {
+		return scoringMode;
+	}
 
-		Set<String> jobIds = jobs.keySet();
-		double size = users.keySet().size() * jobIds.size();
-		ArrayList<RealVector> userVectors = new ArrayList<RealVector>();
-		class UserTask implements Runnable {
+	public void setScoringMode(String scoringMode) {
+		this.scoringMode = scoringMode;
+	}
 
-			public String userid = "";
-			public String jobId = "";
-			public RealVector userV;
-			public RealVector jobV;
-			public int threadId = 0;
+	/**
+	 * Settings of the "ann" scoring mode. With reportRecall set the exact
+	 * top-N is computed as well and the recall of the LSH lists against it is
+	 * logged.
+	 */
+	public void setAnnParameters(int tables, int bits, boolean probes, boolean reportRecall) {
+		this.annTables = tables;
+		this.annBits = bits;
+		this.annProbes = probes;
+		this.annReportRecall = reportRecall;
+	}
 
-			public UserTask() {
-			}
+	/**
+	 * Settings of the "quantized" scoring mode: oversample times topN jobs
+	 * are taken from the quantized matrix and rescored with the float
+	 * vectors. With reportRecall set the recall against the exact top-N is
+	 * logged.
+	 */
+	public void setQuantizedParameters(int oversample, boolean reportRecall) {
+		this.quantizedOversample = Math.max(1, oversample);
+		this.quantizedReportRecall = reportRecall;
+	}
 
-			@Override
-			public void run() {
-				try {
-					try {
-						
-						double val = getCosineSimilarityWithUserRating(userV, jobV);
-						System.out.println("Thread  " + threadId + "-- Job " + userid + " and User " + jobId + " " + val
-								+ " \t" + (countTask * 100.0d / size) + " %");
-						topNRecommendResult.get(userid).add(jobId, val);
-						countTask++;
-					} catch (IOException e) {
+	/**
+	 * Settings of the "lsa" scoring mode. A model stored in modelFile is
+	 * reused, folding in documents added since it was fitted, unless refit is
+	 * set or it has another rank; a newly fitted model is written there.
+	 * modelFile may be null.
+	 */
+	public void setLsaParameters(int rank, int oversample, int iterations, File modelFile, boolean refit) {
+		this.lsaRank = Math.max(1, rank);
+		this.lsaOversample = Math.max(0, oversample);
+		this.lsaIterations = Math.max(0, iterations);
+		this.lsaModelFile = modelFile;
+		this.lsaRefit = refit;
+	}
 
-					}
-				} catch (Exception e) {
-					log.error(e);
-				}
+	/**
+	 * The LSA model of the normalized job vectors and CVs, loaded or fitted
+	 * on first use.
+	 */
+	public LatentSemanticModel buildLatentModel() throws IOException, InterruptedException, ExecutionException {
+		if (latentModel != null) {
+			return latentModel;
+		}
+		if (lsaModelFile != null && !lsaRefit) {
+			LatentSemanticModel stored = LatentSemanticModel.load(lsaModelFile, dictionary);
+			if (stored != null && stored.getRequestedRank() == lsaRank) {
+				log.info("Reusing LSA model of rank " + stored.getRank() + " from " + lsaModelFile);
+				return latentModel = stored;
 			}
+		}
+		ensureNormalizedModel();
+		SparseVector[] docs = Arrays.copyOf(jobModel.getVectors(), jobModel.size() + users.size());
+		int d = jobModel.size();
+		for (int doc : users.values()) {
+			docs[d++] = getCachedWieghts(doc).normalize();
+		}
+		long start = System.currentTimeMillis();
+		latentModel = LatentSemanticModel.fit(docs, dictionary.size(), lsaRank, lsaOversample, lsaIterations,
+				LatentSemanticModel.DEFAULT_SEED);
+		log.info("LSA model of rank " + latentModel.getRank() + " fitted to " + docs.length + " documents in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		if (lsaModelFile != null) {
+			latentModel.save(lsaModelFile, dictionary);
+		}
+		return latentModel;
+	}
 
+	/**
+	 * Profile of a user: the CV vector plus the vectors of every liked job.
+	 */
+	protected SparseVector buildUserProfile(String user) throws IOException {
+		SparseVector tf = profileStore != null ? profileStore.getTermFrequencies(user) : null;
+		if (tf != null) {
+			float[] weights = new float[tf.getNonZeroCount()];
+			for (int k = 0; k < weights.length; k++) {
+				weights[k] = tf.getValue(k) * dictionary.getIdf(tf.getIndex(k));
+			}
+			return new SparseVector(tf.getIndices(), weights);
+		}
+		SparseVector v = getCachedWieghts(users.get(user));
+		ArrayList<Integer> arrayList = rating.get(user);
+		if (arrayList != null) {
+			for (int i : arrayList) {
+				v = v.add(getCachedWieghts(i));
+			}
 		}
+		return v;
+	}
 
-		for (String j : users.keySet()) {
-			CBTopNJobs cbTopN = new CBTopNJobs(topN);
-			topNRecommendResult.put(j, cbTopN);
-			try {
-				Map<String, Double> v_user = getWieghts(reader, users.get(j));
-				ArrayList<Integer> arrayList = rating.get(j);
-				RealVector v = toRealVector(v_user);
-				ArrayList<Integer> arrayList_run = rating.get(j);
-				if (arrayList_run != null) {
-					for (int i : arrayList) {
-						Map<String, Double> p = getWieghts(reader, i);
-						RealVector vlike = toRealVector(p);
-						v = v.add(vlike);
-					}
-				}
-				userVectors.add(v);
-			} catch (IOException e) {
+	private NormalizedVectors jobModel;
+	private NormalizedVectors userModel;
 
+	/**
+	 * Normalizes every job vector and every user profile once, keeping their
+	 * norms; the scoring paths then compute cosines as dot products. Job
+	 * ordinals follow the iteration order of jobs, user ordinals that of
+	 * users.
+	 *
+	 * The model holds the whole corpus, so every vector is evicted from the
+	 * weight vector cache once it is normalized: the cache budget bounds the
+	 * vectors kept for building, and the model does not keep a second copy of
+	 * them. Profiles are built first, as those not in the profile store are
+	 * summed from cached job vectors.
+	 */
+	public void buildNormalizedModel() throws IOException {
+		ensureProfileStore();
+		final String[] userIds = users.keySet().toArray(new String[users.size()]);
+		userModel = new NormalizedVectors(userIds, new NormalizedVectors.Source() {
+			@Override
+			public SparseVector get(int ordinal) throws IOException {
+				SparseVector profile = buildUserProfile(userIds[ordinal]);
+				vectorCache.remove(users.get(userIds[ordinal]));
+				return profile;
 			}
+		});
+		final String[] jobIds = new String[jobs.size()];
+		final int[] jobDocs = new int[jobIds.length];
+		int k = 0;
+		for (Map.Entry<String, Integer> e : jobs.entrySet()) {
+			jobIds[k] = e.getKey();
+			jobDocs[k++] = e.getValue();
 		}
-		Runtime runtime = Runtime.getRuntime();
-		int numOfProcessors = runtime.availableProcessors();
-		for (String i : jobIds) {
-			try {
-				Map<String, Double> v_job = getWieghts(reader, jobs.get(i));
-				RealVector rvJob = toRealVector(v_job);
-				int vi_user = 0;
-				ExecutorService executor = Executors.newFixedThreadPool(numOfProcessors - 1);
-				for (String j : users.keySet()) {
-					ArrayList<Integer> arrayList = rating.get(j);
-					if(arrayList != null)
-					{
-						if(!arrayList.contains(i)) 
-						{
-							UserTask rec = new UserTask();
-							rec.jobId = i;
-							rec.userid = j;
-							rec.jobV = rvJob;
-							rec.threadId = vi_user;
-							rec.userV = userVectors.get(vi_user++);
-							executor.submit(rec);						
-						}
-					}
-					else
-					{
-						
-						UserTask rec = new UserTask();
-						rec.jobId = i;
-						rec.userid = j;
-						rec.jobV = rvJob;
-						rec.threadId = vi_user;
-						rec.userV = userVectors.get(vi_user++);
-						executor.submit(rec);	
-					}
+		jobModel = new NormalizedVectors(jobIds, new NormalizedVectors.Source() {
+			@Override
+			public SparseVector get(int ordinal) throws IOException {
+				SparseVector v = getCachedWieghts(jobDocs[ordinal]);
+				vectorCache.remove(jobDocs[ordinal]);
+				return v;
+			}
+		});
+		log.info("Normalized " + jobIds.length + " job vectors and " + userIds.length + " user profiles: "
+				+ (jobModel.getBytes() + userModel.getBytes()) + " bytes; weight vector cache: "
+				+ vectorCache.getStatistics());
+	}
 
-				}
-				executor.shutdown();
-				while (!executor.isTerminated()) {
-				}
-				vi_user = 0;
-			} catch (IOException e) {
+	public NormalizedVectors getJobModel() {
+		return jobModel;
+	}
 
-			}
+	public NormalizedVectors getUserModel() {
+		return userModel;
+	}
+
+	private void ensureNormalizedModel() throws IOException {
+		if (jobModel == null || userModel == null) {
+			buildNormalizedModel();
 		}
+	}
 
+	/**
+	 * Posting lists over all jobs; job ordinals are those of the job model,
+	 * the order the exhaustive path scores them in.
+	 */
+	protected InvertedJobIndex buildJobIndex() {
+		return new InvertedJobIndex(jobModel.getIds(), jobModel.getVectors(), dictionary.size());
 	}
-	
-	
-	public HashMap<String, CbRecommededList> getRecommendScoreForSpecificJobs(HashMap<String,List<RecommendedItem>> cfResult) {
-		System.out.println("Start CB");
-		Set<String> jobKeySet = jobs.keySet();
-		double size = users.keySet().size() * jobKeySet.size();
-		ArrayList<RealVector> userRealVectors = new ArrayList<RealVector>();
-		
-		class UserTaskRec implements Runnable {
-
-			public String userid = "";
-			public String jobId = "";
-			public RealVector userV;
-			public RealVector jobV;			
-
-			public UserTaskRec() {
+
+	public HashMap<String, CBTopNJobs> topNRecommendResult = new HashMap<String, CBTopNJobs>();
+
+	public HashMap<String, CbRecommededList> recommendResult = new HashMap<String, CbRecommededList>();
+
+	public void recommendForTopN(final int topN) {
+		CBTopNJobs[] results = scoreTopN(topN);
+		if (results == null) {
+			return;
+		}
+		for (int u = 0; u < results.length; u++) {
+			topNRecommendResult.put(userModel.getId(u), results[u] != null ? results[u] : new CBTopNJobs(topN));
+		}
+	}
+
+	/**
+	 * Top-N lists of all users by user ordinal, scored the way scoringMode
+	 * says; null if the model cannot be built. Entries are null for users a
+	 * failed scoring mode did not reach.
+	 */
+	private CBTopNJobs[] scoreTopN(final int topN) {
+		try {
+			ensureNormalizedModel();
+		} catch (IOException e) {
+			log.error(e);
+			return null;
+		}
+		final NormalizedVectors userModel = this.userModel;
+		final NormalizedVectors jobModel = this.jobModel;
+		final CBTopNJobs[] results = new CBTopNJobs[userModel.size()];
+		if ("inverted".equals(scoringMode) && dictionary.isSigned()) {
+			// MaxScore bounds assume non-negative weights
+			log.info("Inverted scoring needs unsigned weights, using spmm with " + dictionary.getName());
+			scoreWithSpMM(topN, results);
+		} else if ("inverted".equals(scoringMode)) {
+			final InvertedJobIndex index = buildJobIndex();
+			CBScoringScheduler.scoreUsers("CB inverted scoring", userModel.size(),
+					new CBScoringScheduler.UserScorer() {
+						@Override
+						public long score(int user) {
+							results[user] = new CBTopNJobs(topN);
+							return index.recommend(userModel.getVector(user), results[user]);
+						}
+					});
+		} else if ("spmm".equals(scoringMode)) {
+			scoreWithSpMM(topN, results);
+		} else if ("ann".equals(scoringMode)) {
+			final LshJobIndex index;
+			try {
+				long start = System.currentTimeMillis();
+				index = new LshJobIndex(jobModel, annTables, annBits, annProbes, LshJobIndex.DEFAULT_SEED);
+				log.info("LSH index over " + jobModel.size() + " jobs built in " + (System.currentTimeMillis() - start)
+						+ " ms");
+			} catch (Exception e) {
+				log.error(e);
+				return results;
+			}
+			long candidates = CBScoringScheduler.scoreUsers("CB ann scoring", userModel.size(),
+					new CBScoringScheduler.UserScorer() {
+						@Override
+						public long score(int user) {
+							results[user] = new CBTopNJobs(topN);
+							return index.recommend(userModel.getVector(user), results[user]);
+						}
+					});
+			log.info("LSH candidates per user: " + (double) candidates / Math.max(1, userModel.size()) + " of "
+					+ jobModel.size() + " jobs");
+			if (annReportRecall) {
+				reportRecall(topN, results,
+						"CB ann (tables=" + annTables + ", bits=" + annBits + ", probes=" + annProbes + ")");
+			}
+		} else if ("lsa".equals(scoringMode)) {
+			if (!scoreLatent(topN, results)) {
+				log.warn("Falling back to exhaustive CB scoring");
+				scoreExhaustive(topN, results);
 			}
+		} else if ("quantized".equals(scoringMode)) {
+			scoreQuantized(topN, results);
+			if (quantizedReportRecall) {
+				reportRecall(topN, results, "CB quantized (oversample=" + quantizedOversample + ")");
+			}
+		} else {
+			scoreExhaustive(topN, results);
+		}
+		return results;
+	}
 
-			@Override
-			public void run() {
-				try {
-					try {
-						double val = getCosineSimilarityWithUserRating(userV, jobV);
-						CbRecommededList rs = recommendResult.get(userid);
-						 rs.update(jobId, val);
-						 recommendResult.put(userid, rs);
-						countTask++;
-					} catch (IOException e) {
+	private void scoreExhaustive(final int topN, final CBTopNJobs[] results) {
+		final int[] jobIds = new int[jobModel.size()];
+		for (int j = 0; j < jobIds.length; j++) {
+			jobIds[j] = Integer.parseInt(jobModel.getId(j));
+		}
+		final int numTerms = dictionary.size();
+		CBScoringScheduler.scoreBlocks("CB exhaustive scoring", userModel.size(),
+				BlockedSpMMScorer.DEFAULT_USER_BLOCK, new CBScoringScheduler.BlockScorer() {
+					@Override
+					public long score(int from, int to) {
+						// the user is scattered once, every job gathers from it
+						float[] dense = new float[numTerms];
+						for (int user = from; user < to; user++) {
+							results[user] = new CBTopNJobs(topN);
+							SparseVector userV = userModel.getVector(user);
+							VectorKernels.scatter(userV, dense);
+							for (int i = 0; i < jobIds.length; i++) {
+								results[user].add(jobIds[i], jobModel.cosine(dense, i));
+							}
+							VectorKernels.clear(userV, dense);
+						}
+						return (long) (to - from) * jobIds.length;
+					}
+				});
+	}
 
+	private void scoreWithSpMM(int topN, CBTopNJobs[] results) {
+		for (int u = 0; u < results.length; u++) {
+			results[u] = new CBTopNJobs(topN);
+		}
+		SparseMatrix userMatrix = SparseMatrix.fromRows(userModel.getVectors(), dictionary.size(), false);
+		int[] jobIds = new int[jobModel.size()];
+		for (int j = 0; j < jobIds.length; j++) {
+			jobIds[j] = Integer.parseInt(jobModel.getId(j));
+		}
+		SparseMatrix jobMatrix = SparseMatrix.fromRows(jobModel.getVectors(), dictionary.size(), false).transpose();
+		new BlockedSpMMScorer(jobMatrix, jobIds).scoreAll("CB spmm scoring", userMatrix, results);
+	}
+
+	/**
+	 * Ranks jobs by the cosine of the LSA embeddings of user and job. A block
+	 * of users goes through the jobs one tile at a time, so the tile's
+	 * embeddings stay in cache for all users of the block. Returns false,
+	 * leaving results untouched, if the model cannot be loaded or fitted.
+	 */
+	private boolean scoreLatent(final int topN, final CBTopNJobs[] results) {
+		final int rank;
+		final float[] userEmbeddings;
+		final float[] jobEmbeddings;
+		try {
+			LatentSemanticModel model = buildLatentModel();
+			rank = model.getRank();
+			userEmbeddings = model.embedAll(userModel.getVectors(), true);
+			jobEmbeddings = model.embedAll(jobModel.getVectors(), true);
+		} catch (Exception e) {
+			log.error("Cannot build the LSA model", e);
+			return false;
+		}
+		final int[] jobIds = new int[jobModel.size()];
+		for (int j = 0; j < jobIds.length; j++) {
+			jobIds[j] = Integer.parseInt(jobModel.getId(j));
+		}
+		final int jobTile = Math.max(1, BlockedSpMMScorer.DEFAULT_JOB_TILE / Math.max(1, rank / 4));
+		CBScoringScheduler.scoreBlocks("CB lsa scoring", userModel.size(), BlockedSpMMScorer.DEFAULT_USER_BLOCK,
+				new CBScoringScheduler.BlockScorer() {
+					@Override
+					public long score(int from, int to) {
+						for (int u = from; u < to; u++) {
+							results[u] = new CBTopNJobs(topN);
+						}
+						for (int j0 = 0; j0 < jobIds.length; j0 += jobTile) {
+							int j1 = Math.min(jobIds.length, j0 + jobTile);
+							for (int u = from; u < to; u++) {
+								CBTopNJobs result = results[u];
+								for (int j = j0; j < j1; j++) {
+									result.add(jobIds[j],
+											VectorKernels.dot(userEmbeddings, u * rank, jobEmbeddings, j * rank, rank));
+								}
+							}
+						}
+						return (long) (to - from) * jobIds.length;
 					}
-				} catch (Exception e) {
-					log.error(e);
-				}
-			}
+				});
+		return true;
+	}
 
+	/**
+	 * Takes the best topN * oversample jobs of every user by the quantized
+	 * scores and ranks them by their float cosine.
+	 */
+	private void scoreQuantized(final int topN, final CBTopNJobs[] results) {
+		final NormalizedVectors userModel = this.userModel;
+		final NormalizedVectors jobModel = this.jobModel;
+		final QuantizedJobMatrix matrix = new QuantizedJobMatrix(jobModel.getVectors(), dictionary.size());
+		log.info("Quantized job matrix: " + matrix.getStatistics());
+		final SparseMatrix userMatrix = SparseMatrix.fromRows(userModel.getVectors(), dictionary.size(), false);
+		final int[] jobIds = new int[jobModel.size()];
+		for (int j = 0; j < jobIds.length; j++) {
+			jobIds[j] = Integer.parseInt(jobModel.getId(j));
 		}
-		//thiet lap cho CF
-		System.out.println("Prepare CF data");
+		final int numCandidates = topN * quantizedOversample;
+		CBScoringScheduler.scoreBlocks("CB quantized scoring", userModel.size(), matrix.getUserBlock(),
+				new CBScoringScheduler.BlockScorer() {
+					@Override
+					public long score(int from, int to) {
+						CBTopNJobs[] candidates = new CBTopNJobs[to - from];
+						for (int u = from; u < to; u++) {
+							candidates[u - from] = new CBTopNJobs(numCandidates);
+						}
+						long pairs = matrix.scoreBlock(userMatrix, from, to, candidates);
+						int[] ordinals = new int[numCandidates];
+						float[] scores = new float[numCandidates];
+						for (int u = from; u < to; u++) {
+							results[u] = new CBTopNJobs(topN);
+							SparseVector userV = userModel.getVector(u);
+							int n = candidates[u - from].sorted(ordinals, scores);
+							for (int k = 0; k < n; k++) {
+								results[u].add(jobIds[ordinals[k]], jobModel.cosine(userV, ordinals[k]));
+							}
+						}
+						return pairs;
+					}
+				});
+	}
 
-		for (String j : users.keySet()) {			
-			CbRecommededList cbRec = new CbRecommededList();
-			for (String i : jobKeySet) {				
-				cbRec.add(i, 0.0d);
+	/**
+	 * Logs the mean recall of the approximate lists against the exact top-N
+	 * of every user that has one.
+	 */
+	private void reportRecall(int topN, CBTopNJobs[] approximate, String description) {
+		CBTopNJobs[] exact = new CBTopNJobs[approximate.length];
+		scoreWithSpMM(topN, exact);
+		log.info(description + " recall@" + topN + " = " + meanRecall(topN, exact, approximate));
+	}
+
+	/**
+	 * Mean over users with a non-empty exact list of the fraction of its jobs
+	 * the other list also has; lists are indexed by user ordinal.
+	 */
+	private static double meanRecall(int topN, CBTopNJobs[] exact, CBTopNJobs[] approximate) {
+		int[] exactIds = new int[topN];
+		int[] approxIds = new int[topN];
+		float[] scores = new float[topN];
+		double sum = 0.0d;
+		int counted = 0;
+		for (int u = 0; u < exact.length; u++) {
+			int n = exact[u].sorted(exactIds, scores);
+			if (n == 0) {
+				continue;
 			}
-			List<RecommendedItem> rec = cfResult.get(j);
-			if(rec != null)
-			{
-				for(RecommendedItem r : rec)
-				{
-					cbRec.update(r.getItemID() + "", r.getValue());
-					cbRec.max_score = 0;
+			int m = approximate[u] != null ? approximate[u].sorted(approxIds, scores) : 0;
+			Arrays.sort(approxIds, 0, m);
+			int hits = 0;
+			for (int k = 0; k < n; k++) {
+				if (Arrays.binarySearch(approxIds, 0, m, exactIds[k]) >= 0) {
+					hits++;
 				}
 			}
-			recommendResult.put(j, cbRec);
+			sum += (double) hits / n;
+			counted++;
 		}
-		//tao user vector
-		System.out.println("Prepare build user's profile vector");
-		for (String j : users.keySet()) {
+		return counted > 0 ? sum / counted : 1.0d;
+	}
 
-			try {
-				Map<String, Double> v_user = getWieghts(reader, users.get(j));
-
-				RealVector v = toRealVector(v_user);
-				ArrayList<Integer> arrayList = rating.get(j);
-				if (arrayList != null) {
-					for (int i : arrayList) {
-						Map<String, Double> p = getWieghts(reader, i);
-						RealVector vlike = toRealVector(p);
-						v = v.add(vlike);
-					}
-				}
-				userRealVectors.add(v);
-			} catch (IOException e) {
+	/**
+	 * Mean overlap of the top-N lists of the last recommendForTopN() with the
+	 * lists the exact term dictionary gives, to judge the accuracy lost to
+	 * feature hashing. The exact model is built on the side from the open
+	 * reader, including the vocabulary pass; the hashed model stays in place.
+	 */
+	public double compareWithDictionary(int topN) throws IOException {
+		FeatureSpace hashed = dictionary;
+		NormalizedVectors hashedJobs = jobModel;
+		NormalizedVectors hashedUsers = userModel;
+		UserProfileStore hashedStore = profileStore;
+		File hashedStoreFile = profileFile;
+		CBTopNJobs[] approximate = new CBTopNJobs[hashedUsers.size()];
+		for (int u = 0; u < approximate.length; u++) {
+			approximate[u] = topNRecommendResult.get(hashedUsers.getId(u));
+		}
+		try {
+			collectTerms();
+			dictionary = TermDictionary.build(reader, CONTENT, terms, N);
+			vectorCache.clear();
+			// rebuilt from the ratings in memory, the stored profiles are hashed
+			profileStore = null;
+			profileFile = null;
+			buildNormalizedModel();
+			CBTopNJobs[] exact = new CBTopNJobs[userModel.size()];
+			scoreWithSpMM(topN, exact);
+			return meanRecall(topN, exact, approximate);
+		} finally {
+			dictionary = hashed;
+			jobModel = hashedJobs;
+			userModel = hashedUsers;
+			profileStore = hashedStore;
+			profileFile = hashedStoreFile;
+			terms.clear();
+			vectorCache.clear();
+		}
+	}
 
-			}
+	/**
+	 * Hybrid candidates of every user: the cbCandidates best jobs of the
+	 * configured CB scoring mode plus the jobs CF recommended, each with its
+	 * CB cosine and its CF rating (0 for jobs CF did not recommend). A job in
+	 * neither list has no CF rating and scores below every CB candidate, so
+	 * it cannot enter a hybrid top-N of at most cbCandidates jobs; only the
+	 * candidates are scored and stored.
+	 */
+	public HashMap<String, CbRecommededList> getRecommendScoreForSpecificJobs(
+			final HashMap<String, List<RecommendedItem>> cfResult, final int cbCandidates) {
+		System.out.println("Start CB");
+		final CBTopNJobs[] cbTop = scoreTopN(cbCandidates);
+		if (cbTop == null) {
+			return this.recommendResult;
 		}
-		//get CPU core
+		final NormalizedVectors userModel = this.userModel;
+		final NormalizedVectors jobModel = this.jobModel;
+		final HashMap<Integer, Integer> jobOrdinals = new HashMap<Integer, Integer>(jobModel.size() * 2);
+		for (int j = 0; j < jobModel.size(); j++) {
+			jobOrdinals.put(Integer.parseInt(jobModel.getId(j)), j);
+		}
+		final CbRecommededList[] results = new CbRecommededList[userModel.size()];
 		System.out.println("Run cb");
-		Runtime runtime = Runtime.getRuntime();
-		int numOfProcessors = runtime.availableProcessors();
-		for (String i : jobKeySet) {			
-			try {
-				Map<String, Double> v_job = getWieghts(reader, jobs.get(i));
-				RealVector rvJob = toRealVector(v_job);
-				int vi_user = 0;
-
-				ExecutorService executor = Executors.newFixedThreadPool(numOfProcessors - 1);
-				for (String j : users.keySet()) {
-					UserTaskRec rec = new UserTaskRec();
-					rec.jobId = i;
-					rec.userid = j;
-					rec.jobV = rvJob;					
-					rec.userV = userRealVectors.get(vi_user++);
-					executor.submit(rec);
-				}
-				executor.shutdown();
-				while (!executor.isTerminated()) {
-				}
-				vi_user = 0;
-			} catch (IOException e) {
-				e.printStackTrace();
+		long pairs = CBScoringScheduler.scoreUsers("CB hybrid scoring", userModel.size(),
+				new CBScoringScheduler.UserScorer() {
+					@Override
+					public long score(int user) {
+						CbRecommededList cbRec = new CbRecommededList();
+						SparseVector userV = userModel.getVector(user);
+						int[] ids = new int[cbCandidates];
+						float[] scores = new float[cbCandidates];
+						int n = cbTop[user] != null ? cbTop[user].sorted(ids, scores) : 0;
+						for (int k = 0; k < n; k++) {
+							cbRec.add(ids[k], jobModel.cosine(userV, jobOrdinals.get(ids[k])), 0.0d);
+						}
+						//thiet lap cho CF
+						List<RecommendedItem> rec = cfResult.get(userModel.getId(user));
+						if (rec != null) {
+							for (RecommendedItem r : rec) {
+								int jobId = (int) r.getItemID();
+								int index = cbRec.indexOf(jobId);
+								if (index >= 0) {
+									cbRec.setOriginal(index, r.getValue());
+								} else {
+									Integer ordinal = jobOrdinals.get(jobId);
+									if (ordinal != null) {
+										cbRec.add(jobId, jobModel.cosine(userV, ordinal), r.getValue());
+									}
+								}
+							}
+						}
+						results[user] = cbRec;
+						return cbRec.size();
+					}
+				});
+		for (int u = 0; u < results.length; u++) {
+			if (results[u] != null) {
+				recommendResult.put(userModel.getId(u), results[u]);
 			}
-			System.out.println("Matching for jobid " + i + " \t" + (countTask * 100.0d / size) + " %");
 		}
-		System.out.println("done cb " + recommendResult.size());		 
+		System.out.println("done cb " + recommendResult.size());
+		log.info("Hybrid candidates per user: " + (double) pairs / Math.max(1, results.length) + " of "
+				+ jobModel.size() + " jobs");
 		return  this.recommendResult;
 	}
 
+	/**
+	 * Computes the weight vectors of all jobs, then of all CVs, until the
+	 * cache budget is used up.
+	 */
+	public void warmVectorCache() throws IOException {
+		warmVectorCache(jobs.values());
+		warmVectorCache(users.values());
+		log.info("Weight vector cache: " + vectorCache.getStatistics());
+	}
+
+	@Override
+	public void CalculateIdf() throws IOException {
+		super.CalculateIdf();
+		latentModel = null;
+		if (dictionary instanceof HashingVectorizer) {
+			log.info("Feature hashing: " + ((HashingVectorizer) dictionary).getStatistics());
+		} else {
+			log.info("Term dictionary: " + dictionary.size() + " terms");
+		}
+	}
+
+	/**
+	 * Collects the vocabulary for the term dictionary; feature hashing needs
+	 * none.
+	 */
 	public void buildTermCopus() {
+		if (isFeatureHashing()) {
+			return;
+		}
+		collectTerms();
+	}
+
+	private void collectTerms() {
 		for (String i : users.keySet()) {
 			addTermModel(users.get(i));			
 		}
@@ -309,31 +991,37 @@ public class DocumentProcesser extends DocumentSimilarityTFIDF {
 		}
 	}
 
-	public void addJob(String jobId, String content) {
-
-		try {
-			addDocument(writer, content);
-			// job.add(currentIndex);
-			jobs.put(jobId, currentIndex);
-			currentIndex += 1;
-			N += 1;
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	public void addJob(String jobId, String content) throws IOException {
+		addDocument(TYPE_JOB, jobId, content);
 	}
 
-	public void addCv(String userId, String content) {
-
-		try {
-			addDocument(writer, content);
-			users.put(userId, currentIndex);
-			currentIndex += 1;
-			N += 1;
-		} catch (IOException e) {
+	public void addCv(String userId, String content) throws IOException {
+		addDocument(TYPE_CV, userId, content);
+	}
 
-			e.printStackTrace();
+	/**
+	 * Writes a CV or job unless the index already holds it with the same
+	 * content. A later document with the same id replaces an earlier one.
+	 */
+	private void addDocument(String type, String id, String content) throws IOException {
+		String key = type + ":" + id;
+		String hash = contentHash(content);
+		String indexed = indexedHashes.remove(key);
+		boolean first = seenKeys.add(key);
+		if (first && hash.equals(indexed)) {
+			unchanged.incrementAndGet();
+			return;
+		}
+		Document doc = new Document();
+		doc.add(new StringField(KEY, key, Store.NO));
+		doc.add(new StringField(ID, id, Store.YES));
+		doc.add(new StringField(TYPE, type, Store.YES));
+		doc.add(new StringField(HASH, hash, Store.YES));
+		doc.add(new Field(CONTENT, content, TYPE_STORED));
+		writer.updateDocument(new Term(KEY, key), doc);
+		written.incrementAndGet();
+		if (indexed != null || !first) {
+			replaced.incrementAndGet();
 		}
-
 	}
 }
@@ -19,7 +19,6 @@ import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.*;
 import org.apache.lucene.util.*;
-import org.apache.lucene.search.DocIdSetIterator;
 
 
 public class DocumentSimilarityTFIDF {
@@ -93,7 +92,7 @@ public class DocumentSimilarityTFIDF {
     }
 
     double getCosineSimilarity() {
-        double dotProduct = v1.dotProduct(v2);
+        double dotProduct = dotProduct(v1, v2);
         double normalization = (v1.getNorm() * v2.getNorm());
         return dotProduct / normalization;
     }
@@ -106,64 +105,96 @@ public class DocumentSimilarityTFIDF {
         reader.close();
         RealVector _v1 = toRealVector(f1);
         RealVector _v2 = toRealVector(f2);
-        double dotProduct = _v1.dotProduct(_v2);
+        double dotProduct = dotProduct(_v1, _v2);
         double normalization = (_v1.getNorm() * _v2.getNorm());
         return dotProduct / normalization;
     }
     
-	protected HashMap<Integer,Map<String, Double>> jobVectors = new HashMap<Integer,Map<String, Double>>();
-	protected HashMap<Integer,Map<String, Double>> userVecotor = new HashMap<Integer,Map<String, Double>>();
+    // weight vectors of jobs and CVs, keyed by Lucene doc id
+    protected WeightVectorCache vectorCache = new WeightVectorCache(256L * 1024 * 1024);
     
+    public void setVectorCacheSize(long bytes) {
+        vectorCache.setBudget(bytes);
+    }
+    
+    public WeightVectorCache getVectorCache() {
+        return vectorCache;
+    }
     
+    /**
+     * Weights of a document, computed once and then served from the cache
+     * until evicted.
+     */
+    public SparseVector getCachedWieghts(int docId) throws IOException {
+        SparseVector v = vectorCache.get(docId);
+        if (v == null) {
+            v = getSparseWieghts(reader, docId);
+            vectorCache.put(docId, v);
+        }
+        return v;
+    }
+    
+    /**
+     * Fills the cache with the given documents, stopping once the budget is
+     * used up.
+     */
+    public void warmVectorCache(Collection<Integer> docIds) throws IOException {
+        for (int docId : docIds) {
+            SparseVector v = getSparseWieghts(reader, docId);
+            if (!vectorCache.hasRoomFor(v)) {
+                break;
+            }
+            vectorCache.put(docId, v);
+        }
+    }
 	
     public double getCosineSimilarityWithUserRating(Map<String, Double> cv_v, Map<String, Double> job_vec,ArrayList<Integer> arrayList) throws IOException {                        
-        RealVector _v1 = toRealVector(cv_v);
+        SparseVector _v1 = toSparseVector(cv_v);
         if(arrayList != null)
         {        	
             for(int i : arrayList)
             {	            
-            	Map<String, Double> p = getWieghts(reader, i);
-            	RealVector v = toRealVector(p);
-            	_v1 = _v1.add(v);
+            	_v1 = _v1.add(getCachedWieghts(i));
             }        	
         }
-        RealVector _v2 = toRealVector(job_vec);
-        double dotProduct = _v1.dotProduct(_v2);
-        double normalization = (_v1.getNorm() * _v2.getNorm());
-        return dotProduct / normalization;
+        return getCosineSimilarityWithUserRating(_v1, toSparseVector(job_vec));
     }
 	
     
     public double getCosineSimilarityWithUserRating(RealVector cv_v, RealVector job_vec) throws IOException {                        
                         
+        double dotProduct = dotProduct(cv_v, job_vec);
+        double normalization = (cv_v.getNorm() * job_vec.getNorm());
+        return dotProduct / normalization;
+    }
+
+    /**
+     * Dot product through VectorKernels when both vectors are dense arrays.
+     */
+    static double dotProduct(RealVector a, RealVector b) {
+        if (a instanceof ArrayRealVector && b instanceof ArrayRealVector && a.getDimension() == b.getDimension()) {
+            return VectorKernels.dot(((ArrayRealVector) a).getDataRef(), ((ArrayRealVector) b).getDataRef(),
+                    a.getDimension());
+        }
+        return a.dotProduct(b);
+    }
+
+    public double getCosineSimilarityWithUserRating(SparseVector cv_v, SparseVector job_vec) {
         double dotProduct = cv_v.dotProduct(job_vec);
         double normalization = (cv_v.getNorm() * job_vec.getNorm());
         return dotProduct / normalization;
     }
 	
     public double getCosineSimilarityWithUserRating(int cv,ArrayList<Integer> arrayList, int job) throws IOException {        
-        Map<String, Double> f1 = getWieghts(reader, cv);        
-        Map<String, Double> f2 = getWieghts(reader, job);
-        
-        
-//        Map<String, Double> f1 = this.jobVectors.get(job);
-//        Map<String, Double> f2 = this.userVecotor.get(cv);
-        
-        RealVector _v1 = toRealVector(f1);
+        SparseVector _v1 = getCachedWieghts(cv);
         if(arrayList != null)
         {        	
             for(int i : arrayList)
             {	            
-            	Map<String, Double> p = getWieghts(reader, i);
-            	RealVector v = toRealVector(p);
-            	_v1 = _v1.add(v);
+            	_v1 = _v1.add(getCachedWieghts(i));
             }        	
         }
-
-        RealVector _v2 = toRealVector(f2);
-        double dotProduct = _v1.dotProduct(_v2);
-        double normalization = (_v1.getNorm() * _v2.getNorm());
-        return dotProduct / normalization;
+        return getCosineSimilarityWithUserRating(_v1, getCachedWieghts(job));
     }
     
 	public void addTermModel(int doc){     
@@ -191,45 +222,71 @@ public class DocumentSimilarityTFIDF {
         System.out.println("====== End INDEX ALL =====");
     }
     
-    private Map<String, Integer> docFrequencies = new HashMap<>();
+    protected FeatureSpace dictionary;
+    
+    // 0 uses the exact term dictionary, otherwise the number of hash buckets
+    protected int hashingBuckets = 0;
+    
+    /**
+     * Replaces the term dictionary by signed feature hashing into the given
+     * number of buckets; 0 goes back to the dictionary. Takes effect on the
+     * next CalculateIdf().
+     */
+    public void setHashingBuckets(int buckets) {
+        hashingBuckets = Math.max(0, buckets);
+    }
+    
+    public boolean isFeatureHashing() {
+        return hashingBuckets > 0;
+    }
     
     public void CalculateIdf() throws IOException
     {
-    	for(String i : terms)
-    	{
-    		int val = reader.docFreq( new Term( CONTENT, i ) );
-    		docFrequencies.put(i, val);	
+    	if (isFeatureHashing()) {
+    		dictionary = HashingVectorizer.build(reader, CONTENT, hashingBuckets, N);
+    	} else {
+    		dictionary = TermDictionary.build(reader, CONTENT, terms, N);
     	}
+    	vectorCache.clear();
+    }
+    
+    public FeatureSpace getDictionary() {
+        return dictionary;
     }
     
     public Map<String, Double> getWieghts(IndexReader reader, int docId)
             throws IOException {
-        Terms vector = reader.getTermVector(docId, CONTENT);        
-        Map<String, Integer> termFrequencies = new HashMap<>();
+        SparseVector vector = getSparseWieghts(reader, docId);
         Map<String, Double> tf_Idf_Weights = new HashMap<>();
-        TermsEnum termsEnum = null;
-        DocsEnum docsEnum = null;
-        termsEnum = vector.iterator(termsEnum);
-        BytesRef text = null;
-        while ((text = termsEnum.next()) != null) {
-            String term = text.utf8ToString();
-            //docFrequencies.put(term, reader.docFreq( new Term( CONTENT, term ) ));
-            docsEnum = termsEnum.docs(null, null);
-            while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-                termFrequencies.put(term, docsEnum.freq());
-            }
-        }
-        for ( String term : docFrequencies.keySet() ) {
-            int tf = termFrequencies.containsKey(term) ? termFrequencies.get(term) : 0;
-            int df = docFrequencies.get(term);
-            double idf = ( 1 + Math.log(N) - Math.log(df) );
-            double w = tf * idf;
-            tf_Idf_Weights.put(term, w);
-           // System.out.printf("Term: %s - tf: %d, df: %d, idf: %f, w: %f\n", term, tf, df, idf, w);
+        for (int k = 0; k < vector.getNonZeroCount(); k++) {
+            tf_Idf_Weights.put(dictionary.getTerm(vector.getIndex(k)), (double) vector.getValue(k));
         }
         return tf_Idf_Weights;
     }
     
+    /**
+     * tf-idf weights of a document keyed by dictionary term id. Terms not in
+     * the dictionary are skipped.
+     */
+    public SparseVector getSparseWieghts(IndexReader reader, int docId)
+            throws IOException {
+        return getSparseVector(reader, docId, true);
+    }
+    
+    /**
+     * Raw term frequencies of a document keyed by dictionary term id; the
+     * tf-idf weights are these times the idf of each term.
+     */
+    public SparseVector getSparseTermFrequencies(IndexReader reader, int docId)
+            throws IOException {
+        return getSparseVector(reader, docId, false);
+    }
+    
+    private SparseVector getSparseVector(IndexReader reader, int docId, boolean idfWeighted)
+            throws IOException {
+        return dictionary.vectorize(reader.getTermVector(docId, CONTENT), idfWeighted);
+    }
+    
     public void extractTerm(IndexReader reader, int docId)
             throws IOException {
         Terms vector = reader.getTermVector(docId, CONTENT);        
@@ -260,6 +317,20 @@ public class DocumentSimilarityTFIDF {
         return vector;
     }
   
+    public SparseVector toSparseVector(Map<String, Double> map) {
+        int[] ids = new int[map.size()];
+        float[] weights = new float[map.size()];
+        int n = 0;
+        for (Map.Entry<String, Double> e : map.entrySet()) {
+            int id = dictionary.getId(e.getKey());
+            if (id >= 0) {
+                ids[n] = id;
+                weights[n++] = e.getValue().floatValue();
+            }
+        }
+        return SparseVector.fromUnsorted(ids, weights, n);
+    }
+  
     public RealVector toRealVector(Map<String, Double> map, Map<String, Double> world) {
         RealVector vector = new ArrayRealVector(terms.size());
         int i = 0;
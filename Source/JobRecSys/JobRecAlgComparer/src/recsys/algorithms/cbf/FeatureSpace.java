@@ -0,0 +1,42 @@
+package recsys.algorithms.cbf;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.Terms;
+
+/**
+ * Maps the terms of the CB model to dense int ids and their idf: either the
+ * exact TermDictionary or a fixed number of HashingVectorizer buckets.
+ */
+public interface FeatureSpace {
+
+	int size();
+
+	float getIdf(int id);
+
+	/**
+	 * Persistent name of an id; getId(getTerm(id)) == id.
+	 */
+	String getTerm(int id);
+
+	/**
+	 * Id of a term or of a name returned by getTerm, -1 if there is none.
+	 */
+	int getId(String term);
+
+	/**
+	 * Vector of a document term vector: term frequencies, times the idf when
+	 * idfWeighted is set.
+	 */
+	SparseVector vectorize(Terms termVector, boolean idfWeighted) throws IOException;
+
+	/**
+	 * Whether vectors can hold negative weights.
+	 */
+	boolean isSigned();
+
+	/**
+	 * Identifies the mapping, e.g. to tell whether stored vectors still fit.
+	 */
+	String getName();
+}
@@ -0,0 +1,219 @@
+package recsys.algorithms.cbf;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Feature hashing in place of the term dictionary: a term is mapped to
+ * bucket hash(term) mod buckets and its weight gets the sign of another bit of
+ * the same hash, so colliding terms cancel out on average instead of adding
+ * up. Memory is a fixed two arrays of buckets length whatever the corpus size,
+ * and no vocabulary has to be collected from the documents first.
+ *
+ * The document frequency of a bucket is the sum of the document frequencies
+ * of its terms, capped at the number of documents, read from the terms of
+ * the index in one streaming pass. Ids are bucket numbers and are named
+ * "#bucket" for persistence.
+ */
+public class HashingVectorizer implements FeatureSpace {
+
+	public static final int DEFAULT_BUCKETS = 1 << 18;
+
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+
+	private final int buckets;
+	private final int[] docFrequencies;
+	private final float[] idfs;
+	private final long numTerms;
+	private final long collidingTerms;
+	private final int usedBuckets;
+
+	private HashingVectorizer(int buckets, int[] docFrequencies, float[] idfs, long numTerms, long collidingTerms,
+			int usedBuckets) {
+		this.buckets = buckets;
+		this.docFrequencies = docFrequencies;
+		this.idfs = idfs;
+		this.numTerms = numTerms;
+		this.collidingTerms = collidingTerms;
+		this.usedBuckets = usedBuckets;
+	}
+
+	/**
+	 * Computes the bucket document frequencies of field and the collision
+	 * statistics. idf = 1 + ln(numDocs) - ln(df) as in TermDictionary.
+	 */
+	public static HashingVectorizer build(IndexReader reader, String field, int buckets, int numDocs)
+			throws IOException {
+		long[] df = new long[buckets];
+		int[] termsPerBucket = new int[buckets];
+		long numTerms = 0;
+		Terms terms = MultiFields.getTerms(reader, field);
+		if (terms != null) {
+			TermsEnum termsEnum = terms.iterator(null);
+			BytesRef text;
+			while ((text = termsEnum.next()) != null) {
+				int b = bucket(hash(text), buckets);
+				df[b] += termsEnum.docFreq();
+				termsPerBucket[b]++;
+				numTerms++;
+			}
+		}
+		int[] docFrequencies = new int[buckets];
+		float[] idfs = new float[buckets];
+		double logN = Math.log(numDocs);
+		long colliding = 0;
+		int used = 0;
+		for (int b = 0; b < buckets; b++) {
+			if (termsPerBucket[b] == 0) {
+				continue;
+			}
+			used++;
+			if (termsPerBucket[b] > 1) {
+				colliding += termsPerBucket[b];
+			}
+			docFrequencies[b] = (int) Math.min(df[b], numDocs);
+			idfs[b] = (float) (1 + logN - Math.log(docFrequencies[b]));
+		}
+		return new HashingVectorizer(buckets, docFrequencies, idfs, numTerms, colliding, used);
+	}
+
+	@Override
+	public int size() {
+		return buckets;
+	}
+
+	public int getDocFrequency(int id) {
+		return docFrequencies[id];
+	}
+
+	@Override
+	public float getIdf(int id) {
+		return idfs[id];
+	}
+
+	@Override
+	public String getTerm(int id) {
+		return "#" + id;
+	}
+
+	/**
+	 * Accepts bucket names ("#12") as well as terms, which are hashed.
+	 */
+	@Override
+	public int getId(String term) {
+		if (term.length() > 1 && term.charAt(0) == '#') {
+			try {
+				int id = Integer.parseInt(term.substring(1));
+				return id >= 0 && id < buckets ? id : -1;
+			} catch (NumberFormatException e) {
+				// a term starting with '#'
+			}
+		}
+		return bucket(hash(new BytesRef(term)), buckets);
+	}
+
+	/**
+	 * Signed term frequencies summed per bucket; buckets whose terms cancel
+	 * out are dropped.
+	 */
+	@Override
+	public SparseVector vectorize(Terms termVector, boolean idfWeighted) throws IOException {
+		int capacity = termVector.size() > 0 ? (int) termVector.size() : 16;
+		long[] packed = new long[capacity];
+		float[] weights = new float[capacity];
+		int n = 0;
+		TermsEnum termsEnum = termVector.iterator(null);
+		BytesRef text = null;
+		while ((text = termsEnum.next()) != null) {
+			long h = hash(text);
+			int b = bucket(h, buckets);
+			float w = termsEnum.totalTermFreq();
+			if (idfWeighted) {
+				w *= idfs[b];
+			}
+			if (n == packed.length) {
+				packed = Arrays.copyOf(packed, n * 2);
+				weights = Arrays.copyOf(weights, n * 2);
+			}
+			// bucket in the high half, position in the low half to find the weight after sorting
+			packed[n] = ((long) b << 32) | n;
+			weights[n++] = h < 0 ? -w : w;
+		}
+		Arrays.sort(packed, 0, n);
+		int[] idx = new int[n];
+		float[] val = new float[n];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			int b = (int) (packed[i] >>> 32);
+			float w = weights[(int) packed[i]];
+			if (m > 0 && idx[m - 1] == b) {
+				val[m - 1] += w;
+			} else {
+				idx[m] = b;
+				val[m++] = w;
+			}
+		}
+		int k = 0;
+		for (int i = 0; i < m; i++) {
+			if (val[i] != 0.0f) {
+				idx[k] = idx[i];
+				val[k++] = val[i];
+			}
+		}
+		if (k < n) {
+			idx = Arrays.copyOf(idx, k);
+			val = Arrays.copyOf(val, k);
+		}
+		return new SparseVector(idx, val);
+	}
+
+	@Override
+	public boolean isSigned() {
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		return "hashing/" + buckets;
+	}
+
+	public long getNumTerms() {
+		return numTerms;
+	}
+
+	/**
+	 * Fraction of the index terms that share their bucket with another term.
+	 */
+	public double getCollisionRate() {
+		return numTerms > 0 ? (double) collidingTerms / numTerms : 0.0d;
+	}
+
+	public String getStatistics() {
+		return "buckets=" + buckets + ", used=" + usedBuckets + ", terms=" + numTerms + ", collidingTerms="
+				+ collidingTerms + ", collisionRate=" + getCollisionRate();
+	}
+
+	private static int bucket(long hash, int buckets) {
+		return (int) ((hash & 0x7fffffffffffffffL) % buckets);
+	}
+
+	/**
+	 * FNV-1a over the UTF-8 bytes followed by a 64 bit finalizer; the sign bit
+	 * is the weight sign, the other bits pick the bucket.
+	 */
+	private static long hash(BytesRef term) {
+		long h = SEED;
+		for (int i = term.offset; i < term.offset + term.length; i++) {
+			h = (h ^ (term.bytes[i] & 0xff)) * 0x100000001B3L;
+		}
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+}
@@ -0,0 +1,157 @@
+package recsys.algorithms.cbf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Feeds CVs and jobs to a DocumentProcesser from several threads. The caller
+ * is the reader stage: it hands the raw fields of a document to addCv/addJob,
+ * which put them on the bounded queue of one analyzer worker and block while
+ * that queue is full. Workers prepare the fields (Vietnamese segmentation),
+ * join them into the document content and add it to the shared IndexWriter,
+ * which analyzes it on the worker thread. Documents are routed by id, so all
+ * versions of a document go through the same worker in the order they were
+ * read.
+ *
+ * The first failure of any worker stops the pipeline: the reader stage gets
+ * it from its next addCv/addJob, finish() rethrows it, and the workers
+ * discard the rest of their queues so that no put blocks forever.
+ */
+public class IndexingPipeline {
+	private static Logger log = Logger.getLogger("Author: Luan");
+
+	private static final Item END = new Item(null, null, null);
+	private static final long PUT_TIMEOUT_MS = 100;
+
+	private final DocumentProcesser processer;
+	private final List<BlockingQueue<Item>> queues;
+	private final Future<?>[] workers;
+	private final ExecutorService executor;
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private long submitted = 0;
+
+	public IndexingPipeline(DocumentProcesser processer, int threads, int queueCapacity) {
+		this.processer = processer;
+		int n = Math.max(1, threads);
+		queues = new ArrayList<BlockingQueue<Item>>(n);
+		workers = new Future<?>[n];
+		executor = Executors.newFixedThreadPool(n);
+		for (int i = 0; i < n; i++) {
+			BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(Math.max(1, queueCapacity));
+			queues.add(queue);
+			workers[i] = executor.submit(new Worker(queue));
+		}
+	}
+
+	public void addCv(String userId, String[] fields) throws InterruptedException, IOException {
+		submit(new Item(DocumentProcesser.TYPE_CV, userId, fields));
+	}
+
+	public void addJob(String jobId, String[] fields) throws InterruptedException, IOException {
+		submit(new Item(DocumentProcesser.TYPE_JOB, jobId, fields));
+	}
+
+	private void submit(Item item) throws InterruptedException, IOException {
+		int worker = ((item.id.hashCode() * 31 + item.type.hashCode()) & 0x7fffffff) % queues.size();
+		checkFailure();
+		while (!queues.get(worker).offer(item, PUT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+			checkFailure();
+		}
+		if (++submitted % 10000 == 0) {
+			log.info("Queued " + submitted + " documents for indexing");
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable e = failure.get();
+		if (e != null) {
+			throw new IOException("Indexing failed", e);
+		}
+	}
+
+	/**
+	 * Waits until every queued document has been added and stops the workers.
+	 * Rethrows the first error a worker ran into.
+	 */
+	public void finish() throws Exception {
+		try {
+			for (int i = 0; i < queues.size(); i++) {
+				while (!queues.get(i).offer(END, PUT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					if (workers[i].isDone()) {
+						// a worker that is gone takes no more items
+						break;
+					}
+				}
+			}
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+			checkFailure();
+			log.info("Indexed " + submitted + " documents on " + queues.size() + " threads");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private class Worker implements Runnable {
+		private final BlockingQueue<Item> queue;
+
+		Worker(BlockingQueue<Item> queue) {
+			this.queue = queue;
+		}
+
+		private final StringBuilder content = new StringBuilder();
+
+		@Override
+		public void run() {
+			try {
+				Item item;
+				while ((item = queue.take()) != END) {
+					if (failure.get() != null) {
+						// keep draining the queue so the reader stage never blocks
+						continue;
+					}
+					try {
+						content.setLength(0);
+						for (String field : item.fields) {
+							content.append(processer.prepareField(field)).append(". ");
+						}
+						if (DocumentProcesser.TYPE_JOB.equals(item.type)) {
+							processer.addJob(item.id, content.toString());
+						} else {
+							processer.addCv(item.id, content.toString());
+						}
+					} catch (Throwable e) {
+						if (failure.compareAndSet(null, e)) {
+							log.error("Indexing " + item.type + " " + item.id + " failed", e);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static class Item {
+		final String type;
+		final String id;
+		final String[] fields;
+
+		Item(String type, String id, String[] fields) {
+			this.type = type;
+			this.id = id;
+			this.fields = fields;
+		}
+	}
+}
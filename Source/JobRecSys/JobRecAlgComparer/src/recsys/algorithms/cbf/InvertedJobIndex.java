@@ -0,0 +1,220 @@
+package recsys.algorithms.cbf;
+
+import java.util.Arrays;
+
+/**
+ * Term-to-jobs posting lists over the job weight vectors, used to find a
+ * user's top-N jobs without scoring every job. Postings hold job weights
+ * divided by the job norm so that a user's partial dot product is a partial
+ * cosine; every term also keeps its largest posting weight as an upper bound.
+ *
+ * Candidates are generated document-at-a-time with MaxScore pruning: terms
+ * whose summed upper bounds cannot lift a job above the current N-th score are
+ * only probed for jobs found through the other terms, and a job is dropped as
+ * soon as its partial score plus the remaining bounds falls below that score.
+ * Surviving jobs are rescored with the exact cosine, so the result is the same
+ * as scoring every job.
+ */
+public class InvertedJobIndex {
+
+	/*
+	 * Slack on pruning decisions so that float rounding in the posting weights
+	 * can never drop a job the exact cosine would keep.
+	 */
+	private static final double SLACK = 1e-5;
+
+	private final String[] jobIds;
+	private final SparseVector[] jobVectors;
+	private final int[] termStart;
+	private final int[] postingJobs;
+	private final float[] postingWeights;
+	private final float[] maxWeights;
+
+	/**
+	 * @param jobIds
+	 *            job ids by ordinal; postings are ordered by this ordinal
+	 * @param jobVectors
+	 *            weight vectors by ordinal
+	 * @param numTerms
+	 *            size of the term dictionary
+	 */
+	public InvertedJobIndex(String[] jobIds, SparseVector[] jobVectors, int numTerms) {
+		this.jobIds = jobIds;
+		this.jobVectors = jobVectors;
+		termStart = new int[numTerms + 1];
+		for (SparseVector v : jobVectors) {
+			if (v.getNorm() > 0) {
+				for (int k = 0; k < v.getNonZeroCount(); k++) {
+					termStart[v.getIndex(k) + 1]++;
+				}
+			}
+		}
+		for (int t = 0; t < numTerms; t++) {
+			termStart[t + 1] += termStart[t];
+		}
+		postingJobs = new int[termStart[numTerms]];
+		postingWeights = new float[postingJobs.length];
+		maxWeights = new float[numTerms];
+		int[] fill = new int[numTerms];
+		System.arraycopy(termStart, 0, fill, 0, numTerms);
+		for (int j = 0; j < jobVectors.length; j++) {
+			SparseVector v = jobVectors[j];
+			double norm = v.getNorm();
+			if (!(norm > 0)) {
+				continue;
+			}
+			for (int k = 0; k < v.getNonZeroCount(); k++) {
+				int t = v.getIndex(k);
+				float w = (float) (v.getValue(k) / norm);
+				int p = fill[t]++;
+				postingJobs[p] = j;
+				postingWeights[p] = w;
+				if (w > maxWeights[t]) {
+					maxWeights[t] = w;
+				}
+			}
+		}
+	}
+
+	public int getNumJobs() {
+		return jobIds.length;
+	}
+
+	public String getJobId(int ordinal) {
+		return jobIds[ordinal];
+	}
+
+	public SparseVector getJobVector(int ordinal) {
+		return jobVectors[ordinal];
+	}
+
+	/**
+	 * Offers the user's best jobs to result, in job ordinal order. Returns the
+	 * number of jobs that were fully scored.
+	 */
+	public int recommend(SparseVector user, CBTopNJobs result) {
+		double userNorm = user.getNorm();
+		if (!(userNorm > 0)) {
+			return 0;
+		}
+		int m = 0;
+		int[] terms = new int[user.getNonZeroCount()];
+		double[] weights = new double[terms.length];
+		double[] bounds = new double[terms.length];
+		for (int k = 0; k < user.getNonZeroCount(); k++) {
+			int t = user.getIndex(k);
+			if (t < maxWeights.length && termStart[t] < termStart[t + 1]) {
+				terms[m] = t;
+				weights[m] = user.getValue(k);
+				bounds[m] = weights[m] * maxWeights[t];
+				m++;
+			}
+		}
+		sortByBound(terms, weights, bounds, m);
+		double[] prefix = new double[m + 1];
+		int[] cursor = new int[m];
+		int[] end = new int[m];
+		for (int i = 0; i < m; i++) {
+			prefix[i + 1] = prefix[i] + bounds[i];
+			cursor[i] = termStart[terms[i]];
+			end[i] = termStart[terms[i] + 1];
+		}
+
+		double slack = SLACK * userNorm;
+		double threshold = result.minScore() * userNorm - slack;
+		int essential = 0;
+		while (essential < m && prefix[essential + 1] < threshold) {
+			essential++;
+		}
+		int scored = 0;
+		while (true) {
+			int job = Integer.MAX_VALUE;
+			for (int i = essential; i < m; i++) {
+				if (cursor[i] < end[i] && postingJobs[cursor[i]] < job) {
+					job = postingJobs[cursor[i]];
+				}
+			}
+			if (job == Integer.MAX_VALUE) {
+				break;
+			}
+			double score = 0.0d;
+			for (int i = essential; i < m; i++) {
+				if (cursor[i] < end[i] && postingJobs[cursor[i]] == job) {
+					score += weights[i] * postingWeights[cursor[i]++];
+				}
+			}
+			boolean alive = true;
+			for (int i = essential - 1; i >= 0; i--) {
+				if (score + prefix[i + 1] < threshold) {
+					alive = false;
+					break;
+				}
+				cursor[i] = advance(cursor[i], end[i], job);
+				if (cursor[i] < end[i] && postingJobs[cursor[i]] == job) {
+					score += weights[i] * postingWeights[cursor[i]];
+				}
+			}
+			if (!alive || score < threshold) {
+				continue;
+			}
+			SparseVector v = jobVectors[job];
+			result.add(jobIds[job], user.dotProduct(v) / (userNorm * v.getNorm()));
+			scored++;
+			threshold = result.minScore() * userNorm - slack;
+			while (essential < m && prefix[essential + 1] < threshold) {
+				essential++;
+			}
+		}
+		return scored;
+	}
+
+	/**
+	 * First posting position in [from, to) whose job is >= job.
+	 */
+	private int advance(int from, int to, int job) {
+		int step = 1;
+		int low = from;
+		int high = from;
+		while (high < to && postingJobs[high] < job) {
+			low = high + 1;
+			high += step;
+			step <<= 1;
+		}
+		if (high > to) {
+			high = to;
+		}
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (postingJobs[mid] < job) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Sorts the first m terms by ascending bound. Each bound, as float bits
+	 * that compare like the value, is packed with its position into a long, so
+	 * one primitive sort orders the positions; bounds equal as floats keep
+	 * their order. Only the pruning speed depends on the order.
+	 */
+	private static void sortByBound(int[] terms, double[] weights, double[] bounds, int m) {
+		long[] order = new long[m];
+		for (int i = 0; i < m; i++) {
+			int bits = Float.floatToIntBits((float) bounds[i]);
+			order[i] = ((long) (bits ^ ((bits >> 31) & 0x7FFFFFFF)) << 32) | i;
+		}
+		Arrays.sort(order);
+		int[] t = Arrays.copyOf(terms, m);
+		double[] w = Arrays.copyOf(weights, m);
+		double[] b = Arrays.copyOf(bounds, m);
+		for (int k = 0; k < m; k++) {
+			int i = (int) order[k];
+			terms[k] = t[i];
+			weights[k] = w[i];
+			bounds[k] = b[i];
+		}
+	}
+}
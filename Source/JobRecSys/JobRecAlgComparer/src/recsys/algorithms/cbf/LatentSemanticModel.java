@@ -0,0 +1,479 @@
+package recsys.algorithms.cbf;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import utils.AtomicFileWriter;
+
+/**
+ * Latent semantic analysis for CB: a rank-k truncated SVD A ~ U S V^T of the
+ * document-term matrix A (one tf-idf row per document). A document d is
+ * embedded as V^T d, its coordinates in the top k right singular vectors, so
+ * the rows of A map to the rows of U S and a new CV is folded in the same
+ * way as the documents the model was fitted on.
+ *
+ * The SVD is computed with a randomized range finder: Y = A Omega for a
+ * random terms x (k + oversample) matrix, refined by power iterations, gives
+ * an orthonormal basis Q of the dominant column space of A; the SVD of the
+ * small matrix B = Q^T A then follows from the eigendecomposition of B B^T.
+ * The products with A and A^T run on the CB scoring pool. Omega is never
+ * stored: its entries are a hash of (seed, row, column), generated row by
+ * row where they are multiplied. Nor is the final Z = A^T Q; its rows are
+ * computed once for B B^T and again for the projection, so only the power
+ * iterations hold a terms x (k + oversample) matrix. The projection V
+ * can be saved with its terms spelled out and loaded against a later
+ * dictionary.
+ */
+public class LatentSemanticModel {
+
+	public static final int DEFAULT_RANK = 100;
+	public static final int DEFAULT_OVERSAMPLE = 10;
+	public static final int DEFAULT_ITERATIONS = 2;
+	public static final long DEFAULT_SEED = 42L;
+
+	private static final int FORMAT = 2;
+	private static final int ROW_CHUNK = 1024;
+
+	private final int numTerms;
+	// rank asked for in fit(), rank may be lower
+	private final int requestedRank;
+	private final int rank;
+	// projection row of term t at t * rank
+	private final float[] projection;
+	private final double[] singularValues;
+
+	private LatentSemanticModel(int numTerms, int requestedRank, int rank, float[] projection,
+			double[] singularValues) {
+		this.numTerms = numTerms;
+		this.requestedRank = requestedRank;
+		this.rank = rank;
+		this.projection = projection;
+		this.singularValues = singularValues;
+	}
+
+	/**
+	 * Fits the model to the given document vectors. The rank can come out
+	 * lower than requested when the matrix has a lower rank.
+	 */
+	public static LatentSemanticModel fit(SparseVector[] docs, int numTerms, int rank, int oversample, int iterations,
+			long seed) throws InterruptedException, ExecutionException {
+		SparseMatrix a = SparseMatrix.fromRows(docs, numTerms, false);
+		SparseMatrix at = a.transpose();
+		int n = docs.length;
+		int l = Math.min(rank + Math.max(0, oversample), Math.min(n, numTerms));
+		if (l == 0) {
+			return new LatentSemanticModel(numTerms, rank, 0, new float[0], new double[0]);
+		}
+		double[] y = multiplyRandom(a, l, seed);
+		for (int it = 0; it < iterations; it++) {
+			double[] q = orthonormalize(y, n);
+			double[] z = orthonormalize(multiply(at, q, q.length / n), numTerms);
+			y = multiply(a, z, z.length / numTerms);
+		}
+		double[] q = orthonormalize(y, n);
+		l = q.length / n;
+		if (l == 0) {
+			return new LatentSemanticModel(numTerms, rank, 0, new float[0], new double[0]);
+		}
+		// rows of Z = B^T = A^T Q, and B B^T = Z^T Z
+		EigenDecomposition eigen = new EigenDecomposition(gram(at, q, l));
+		Integer[] order = descending(eigen.getRealEigenvalues());
+		RealMatrix w = eigen.getV();
+		int k = 0;
+		double[] sigma = new double[Math.min(rank, l)];
+		double[][] coefficients = new double[sigma.length][];
+		double largest = eigen.getRealEigenvalues()[order[0]];
+		for (int c = 0; c < sigma.length; c++) {
+			double lambda = eigen.getRealEigenvalues()[order[c]];
+			if (!(lambda > largest * 1e-12)) {
+				break;
+			}
+			sigma[k] = Math.sqrt(lambda);
+			// V[:, k] = Z W[:, c] / sigma_k
+			coefficients[k] = new double[l];
+			for (int j = 0; j < l; j++) {
+				coefficients[k][j] = w.getEntry(j, order[c]) / sigma[k];
+			}
+			k++;
+		}
+		final int kk = k;
+		final int ll = l;
+		final double[] qq = q;
+		final double[][] coef = coefficients;
+		final float[] projection = new float[numTerms * k];
+		parallel(numTerms, new IntConsumer() {
+			@Override
+			public void accept(int t) {
+				double[] zt = new double[ll];
+				multiplyRow(at, qq, ll, t, zt, 0);
+				for (int c = 0; c < kk; c++) {
+					projection[t * kk + c] = (float) VectorKernels.dot(zt, 0, coef[c], 0, ll);
+				}
+			}
+		});
+		return new LatentSemanticModel(numTerms, rank, k, projection, Arrays.copyOf(sigma, k));
+	}
+
+	public int getRank() {
+		return rank;
+	}
+
+	/**
+	 * The rank fit() was asked for, which identifies a stored model even when
+	 * the fitted rank came out lower.
+	 */
+	public int getRequestedRank() {
+		return requestedRank;
+	}
+
+	public int getNumTerms() {
+		return numTerms;
+	}
+
+	public double[] getSingularValues() {
+		return singularValues;
+	}
+
+	/**
+	 * Writes V^T v to out at offset; terms outside the model are ignored.
+	 */
+	public void embed(SparseVector v, float[] out, int offset) {
+		Arrays.fill(out, offset, offset + rank, 0.0f);
+		for (int k = 0; k < v.getNonZeroCount(); k++) {
+			int t = v.getIndex(k);
+			if (t < numTerms) {
+				VectorKernels.axpy(v.getValue(k), projection, t * rank, out, offset, rank);
+			}
+		}
+	}
+
+	public float[] embed(SparseVector v) {
+		float[] out = new float[rank];
+		embed(v, out, 0);
+		return out;
+	}
+
+	/**
+	 * Embeddings of all vectors, row i at i * getRank(), computed on the CB
+	 * scoring pool. With normalize set every row is scaled to unit length, so
+	 * the dot product of two rows is their cosine.
+	 */
+	public float[] embedAll(final SparseVector[] vectors, final boolean normalize)
+			throws InterruptedException, ExecutionException {
+		final float[] out = new float[vectors.length * rank];
+		parallel(vectors.length, new IntConsumer() {
+			@Override
+			public void accept(int i) {
+				int offset = i * rank;
+				embed(vectors[i], out, offset);
+				if (normalize) {
+					double norm = Math.sqrt(VectorKernels.dot(out, offset, out, offset, rank));
+					for (int c = 0; norm > 0 && c < rank; c++) {
+						out[offset + c] = (float) (out[offset + c] / norm);
+					}
+				}
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Writes the projection rows of the terms that have one, keyed by term
+	 * name, so the model can be loaded against a different dictionary.
+	 */
+	public void save(File file, FeatureSpace dictionary) throws IOException {
+		AtomicFileWriter.write(file, new AtomicFileWriter.Content() {
+			@Override
+			public void write(DataOutputStream out) throws IOException {
+				out.writeInt(FORMAT);
+				out.writeUTF(dictionary.getName());
+				out.writeInt(requestedRank);
+				out.writeInt(rank);
+				for (double s : singularValues) {
+					out.writeDouble(s);
+				}
+				int rows = 0;
+				for (int t = 0; t < numTerms; t++) {
+					if (!isZeroRow(t)) {
+						rows++;
+					}
+				}
+				out.writeInt(rows);
+				for (int t = 0; t < numTerms; t++) {
+					if (isZeroRow(t)) {
+						continue;
+					}
+					out.writeUTF(dictionary.getTerm(t));
+					for (int c = 0; c < rank; c++) {
+						out.writeFloat(projection[t * rank + c]);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads a model written by save(). Terms the dictionary no longer has are
+	 * dropped and new terms get an empty projection row.
+	 *
+	 * @return null if there is no model or it was saved for another kind of
+	 *         feature space
+	 */
+	public static LatentSemanticModel load(File file, FeatureSpace dictionary) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != FORMAT || !dictionary.getName().equals(in.readUTF())) {
+				return null;
+			}
+			int requestedRank = in.readInt();
+			int rank = in.readInt();
+			double[] sigma = new double[rank];
+			for (int c = 0; c < rank; c++) {
+				sigma[c] = in.readDouble();
+			}
+			int numTerms = dictionary.size();
+			float[] projection = new float[numTerms * rank];
+			int rows = in.readInt();
+			for (int r = 0; r < rows; r++) {
+				int t = dictionary.getId(in.readUTF());
+				for (int c = 0; c < rank; c++) {
+					float value = in.readFloat();
+					if (t >= 0) {
+						projection[t * rank + c] = value;
+					}
+				}
+			}
+			return new LatentSemanticModel(numTerms, requestedRank, rank, projection, sigma);
+		} finally {
+			in.close();
+		}
+	}
+
+	private boolean isZeroRow(int t) {
+		for (int c = 0; c < rank; c++) {
+			if (projection[t * rank + c] != 0.0f) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Row of the random matrix Omega: l uniform entries in [-1, 1) derived
+	 * from a hash of (seed, row, column).
+	 */
+	private static void randomRow(long seed, int row, double[] out, int l) {
+		long base = mix(seed ^ row);
+		for (int c = 0; c < l; c++) {
+			out[c] = (mix(base + c * 0x9E3779B97F4A7C15L) >>> 11) * 0x1p-52 - 1.0d;
+		}
+	}
+
+	/**
+	 * m times Omega, the random matrix with m.getNumColumns() rows and l
+	 * columns; each row of Omega is generated where it is needed.
+	 */
+	private static double[] multiplyRandom(final SparseMatrix m, final int l, final long seed)
+			throws InterruptedException, ExecutionException {
+		final int[] rowStart = m.getRowStart();
+		final int[] columns = m.getColumns();
+		final float[] values = m.getValues();
+		final double[] out = new double[m.getNumRows() * l];
+		parallel(m.getNumRows(), new IntConsumer() {
+			@Override
+			public void accept(int r) {
+				double[] omega = new double[l];
+				for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+					randomRow(seed, columns[p], omega, l);
+					VectorKernels.axpy(values[p], omega, 0, out, r * l, l);
+				}
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * m times the dense matrix x with l columns, both row-major.
+	 */
+	private static double[] multiply(final SparseMatrix m, final double[] x, final int l)
+			throws InterruptedException, ExecutionException {
+		final double[] out = new double[m.getNumRows() * l];
+		parallel(m.getNumRows(), new IntConsumer() {
+			@Override
+			public void accept(int r) {
+				multiplyRow(m, x, l, r, out, r * l);
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Adds row r of m times x (l columns) to out at offset.
+	 */
+	private static void multiplyRow(SparseMatrix m, double[] x, int l, int r, double[] out, int offset) {
+		int[] rowStart = m.getRowStart();
+		int[] columns = m.getColumns();
+		float[] values = m.getValues();
+		for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+			VectorKernels.axpy(values[p], x, columns[p] * l, out, offset, l);
+		}
+	}
+
+	/**
+	 * x^T x of a dense row-major matrix with l columns, summed over row
+	 * chunks in parallel.
+	 */
+	private static Array2DRowRealMatrix gram(final double[] x, final int rows, final int l)
+			throws InterruptedException, ExecutionException {
+		int chunks = (rows + ROW_CHUNK - 1) / ROW_CHUNK;
+		final double[][] partial = new double[chunks][];
+		parallel(chunks, new IntConsumer() {
+			@Override
+			public void accept(int chunk) {
+				double[] g = new double[l * l];
+				for (int r = chunk * ROW_CHUNK; r < Math.min(rows, (chunk + 1) * ROW_CHUNK); r++) {
+					addOuter(x, r * l, l, g);
+				}
+				partial[chunk] = g;
+			}
+		});
+		return sum(partial, l);
+	}
+
+	/**
+	 * Z^T Z for Z = m x (x with l columns), without storing Z: every row of Z
+	 * is computed, added to the partial sum of its chunk and dropped.
+	 */
+	private static Array2DRowRealMatrix gram(final SparseMatrix m, final double[] x, final int l)
+			throws InterruptedException, ExecutionException {
+		final int rows = m.getNumRows();
+		int chunks = (rows + ROW_CHUNK - 1) / ROW_CHUNK;
+		final double[][] partial = new double[chunks][];
+		parallel(chunks, new IntConsumer() {
+			@Override
+			public void accept(int chunk) {
+				double[] g = new double[l * l];
+				double[] z = new double[l];
+				for (int r = chunk * ROW_CHUNK; r < Math.min(rows, (chunk + 1) * ROW_CHUNK); r++) {
+					Arrays.fill(z, 0.0d);
+					multiplyRow(m, x, l, r, z, 0);
+					addOuter(z, 0, l, g);
+				}
+				partial[chunk] = g;
+			}
+		});
+		return sum(partial, l);
+	}
+
+	/**
+	 * g += v v^T for the l entries of v at offset.
+	 */
+	private static void addOuter(double[] v, int offset, int l, double[] g) {
+		for (int i = 0; i < l; i++) {
+			VectorKernels.axpy(v[offset + i], v, offset, g, i * l, l);
+		}
+	}
+
+	/**
+	 * Sum of the partial Gram matrices of the chunks.
+	 */
+	private static Array2DRowRealMatrix sum(double[][] partial, int l) {
+		double[][] g = new double[l][l];
+		for (double[] p : partial) {
+			for (int i = 0; i < l; i++) {
+				for (int j = 0; j < l; j++) {
+					g[i][j] += p[i * l + j];
+				}
+			}
+		}
+		return new Array2DRowRealMatrix(g);
+	}
+
+	/**
+	 * Orthonormal basis of the column space of a dense row-major matrix,
+	 * from the eigendecomposition of its Gram matrix, applied twice to make
+	 * up for the precision the Gram matrix loses. Directions with a
+	 * negligible eigenvalue are dropped, so the result can have fewer
+	 * columns; their number is length / rows.
+	 */
+	private static double[] orthonormalize(double[] x, int rows) throws InterruptedException, ExecutionException {
+		return orthonormalizeOnce(orthonormalizeOnce(x, rows), rows);
+	}
+
+	private static double[] orthonormalizeOnce(final double[] x, int rows)
+			throws InterruptedException, ExecutionException {
+		final int l = x.length / rows;
+		EigenDecomposition eigen = new EigenDecomposition(gram(x, rows, l));
+		double[] lambda = eigen.getRealEigenvalues();
+		Integer[] order = descending(lambda);
+		RealMatrix w = eigen.getV();
+		int kept = 0;
+		while (kept < l && lambda[order[kept]] > lambda[order[0]] * 1e-12 && lambda[order[kept]] > 0) {
+			kept++;
+		}
+		final int k = kept;
+		// T = W_kept Lambda^-1/2, stored column-major for the row products
+		final double[] t = new double[k * l];
+		for (int c = 0; c < k; c++) {
+			double scale = 1.0d / Math.sqrt(lambda[order[c]]);
+			for (int j = 0; j < l; j++) {
+				t[c * l + j] = w.getEntry(j, order[c]) * scale;
+			}
+		}
+		final double[] q = new double[rows * k];
+		parallel(rows, new IntConsumer() {
+			@Override
+			public void accept(int r) {
+				for (int c = 0; c < k; c++) {
+					q[r * k + c] = VectorKernels.dot(x, r * l, t, c * l, l);
+				}
+			}
+		});
+		return q;
+	}
+
+	private static Integer[] descending(final double[] values) {
+		Integer[] order = new Integer[values.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(values[b], values[a]);
+			}
+		});
+		return order;
+	}
+
+	private static void parallel(final int n, final IntConsumer body) throws InterruptedException, ExecutionException {
+		CBScoringScheduler.getPool().submit(new Runnable() {
+			@Override
+			public void run() {
+				IntStream.range(0, n).parallel().forEach(body);
+			}
+		}).get();
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,187 @@
+package recsys.algorithms.cbf;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate candidate source for CB: random-hyperplane LSH over the
+ * unit-length job vectors. Each of the hash tables concatenates the signs of
+ * bits random projections into a bucket key, so two vectors share a bucket
+ * with a probability that falls with the angle between them. The component
+ * of a hyperplane for a term is a standard normal value derived from a hash of
+ * (seed, table, bit, term), so the planes are neither stored nor limited to
+ * the terms known when the index was built.
+ *
+ * A user's candidates are the jobs in its bucket of every table, and with
+ * probes set also the buckets one bit away. Candidates are scored with the
+ * exact cosine. More tables or probes raise recall, more bits make buckets
+ * smaller and lookups faster.
+ */
+public class LshJobIndex {
+
+	public static final int DEFAULT_TABLES = 16;
+	public static final int DEFAULT_BITS = 8;
+	public static final boolean DEFAULT_PROBES = true;
+	public static final long DEFAULT_SEED = 42L;
+
+	private final NormalizedVectors jobs;
+	private final int tables;
+	private final int bits;
+	private final boolean probes;
+	private final long seed;
+	// plane of bit b in table t is t * bits + b
+	private final int planes;
+	// per table: sorted distinct bucket keys, their start in bucketJobs, job ordinals
+	private final int[][] bucketKeys;
+	private final int[][] bucketStart;
+	private final int[][] bucketJobs;
+
+	/**
+	 * Hashes every job on the CB scoring pool.
+	 *
+	 * @param bits
+	 *            bits per table, at most 30
+	 * @param probes
+	 *            also look up the buckets at Hamming distance one
+	 */
+	public LshJobIndex(final NormalizedVectors jobs, int tables, int bits, boolean probes, long seed)
+			throws InterruptedException, ExecutionException {
+		this.jobs = jobs;
+		this.tables = Math.max(1, tables);
+		this.bits = Math.max(1, Math.min(30, bits));
+		this.probes = probes;
+		this.seed = seed;
+		this.planes = this.tables * this.bits;
+		final int[][] signatures = new int[jobs.size()][];
+		CBScoringScheduler.getPool().submit(new Runnable() {
+			@Override
+			public void run() {
+				IntStream.range(0, jobs.size()).parallel().forEach(new IntConsumer() {
+					@Override
+					public void accept(int j) {
+						signatures[j] = signatures(jobs.getVector(j));
+					}
+				});
+			}
+		}).get();
+		bucketKeys = new int[this.tables][];
+		bucketStart = new int[this.tables][];
+		bucketJobs = new int[this.tables][];
+		long[] packed = new long[signatures.length];
+		for (int t = 0; t < this.tables; t++) {
+			for (int j = 0; j < signatures.length; j++) {
+				packed[j] = ((long) signatures[j][t] << 32) | j;
+			}
+			Arrays.sort(packed);
+			int[] keys = new int[packed.length];
+			int[] start = new int[packed.length + 1];
+			int[] members = new int[packed.length];
+			int n = 0;
+			for (int i = 0; i < packed.length; i++) {
+				int key = (int) (packed[i] >>> 32);
+				if (n == 0 || keys[n - 1] != key) {
+					keys[n] = key;
+					start[n++] = i;
+				}
+				members[i] = (int) packed[i];
+			}
+			start[n] = packed.length;
+			bucketKeys[t] = Arrays.copyOf(keys, n);
+			bucketStart[t] = Arrays.copyOf(start, n + 1);
+			bucketJobs[t] = members;
+		}
+	}
+
+	/**
+	 * Bucket key of the vector in every table.
+	 */
+	public int[] signatures(SparseVector v) {
+		double[] projection = new double[planes];
+		for (int k = 0; k < v.getNonZeroCount(); k++) {
+			long termHash = mix(seed ^ v.getIndex(k));
+			double w = v.getValue(k);
+			// one hash gives the components of two consecutive planes
+			for (int p = 0; p < planes; p += 2) {
+				long h = mix(termHash + (p >>> 1) * 0x9E3779B97F4A7C15L);
+				double radius = w * Math.sqrt(-2.0d * Math.log(((h >>> 40) + 1) * 0x1p-24));
+				double angle = (h & 0xFFFFFFL) * (2.0d * Math.PI * 0x1p-24);
+				projection[p] += radius * Math.cos(angle);
+				if (p + 1 < planes) {
+					projection[p + 1] += radius * Math.sin(angle);
+				}
+			}
+		}
+		int[] keys = new int[tables];
+		for (int t = 0; t < tables; t++) {
+			int key = 0;
+			for (int b = 0; b < bits; b++) {
+				if (projection[t * bits + b] > 0) {
+					key |= 1 << b;
+				}
+			}
+			keys[t] = key;
+		}
+		return keys;
+	}
+
+	/**
+	 * Offers the exact cosine of every candidate job to result, in job ordinal
+	 * order. Returns the number of candidates scored.
+	 */
+	public int recommend(SparseVector user, CBTopNJobs result) {
+		if (!(user.getNorm() > 0)) {
+			return 0;
+		}
+		int[] keys = signatures(user);
+		int probeCount = probes ? bits + 1 : 1;
+		int[] candidates = new int[64];
+		int n = 0;
+		for (int t = 0; t < tables; t++) {
+			for (int q = 0; q < probeCount; q++) {
+				int key = q == 0 ? keys[t] : keys[t] ^ (1 << (q - 1));
+				int bucket = Arrays.binarySearch(bucketKeys[t], key);
+				if (bucket < 0) {
+					continue;
+				}
+				int from = bucketStart[t][bucket];
+				int to = bucketStart[t][bucket + 1];
+				if (n + to - from > candidates.length) {
+					candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, n + to - from));
+				}
+				System.arraycopy(bucketJobs[t], from, candidates, n, to - from);
+				n += to - from;
+			}
+		}
+		Arrays.sort(candidates, 0, n);
+		int scored = 0;
+		for (int i = 0; i < n; i++) {
+			int j = candidates[i];
+			if (i > 0 && candidates[i - 1] == j) {
+				continue;
+			}
+			result.add(jobs.getId(j), jobs.cosine(user, j));
+			scored++;
+		}
+		return scored;
+	}
+
+	public int getTables() {
+		return tables;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	public boolean isProbing() {
+		return probes;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,111 @@
+package recsys.algorithms.cbf;
+
+import java.io.IOException;
+
+/**
+ * Unit-length weight vectors of a set of users or jobs, normalized once when
+ * the model is built, together with the original L2 norms. The cosine of two
+ * entries is their dot product; the norms are kept so that raw dot products
+ * can still be recovered.
+ */
+public class NormalizedVectors {
+
+	/**
+	 * Weight vector of an ordinal, asked for once per ordinal in order.
+	 */
+	public interface Source {
+		SparseVector get(int ordinal) throws IOException;
+	}
+
+	private final String[] ids;
+	private final SparseVector[] vectors;
+	private final double[] norms;
+
+	/**
+	 * @param ids
+	 *            user or job ids by ordinal
+	 * @param raw
+	 *            weight vectors by ordinal, not modified
+	 */
+	public NormalizedVectors(String[] ids, SparseVector[] raw) {
+		this.ids = ids;
+		this.vectors = new SparseVector[raw.length];
+		this.norms = new double[raw.length];
+		for (int i = 0; i < raw.length; i++) {
+			norms[i] = raw[i].getNorm();
+			vectors[i] = raw[i].normalize();
+		}
+	}
+
+	/**
+	 * Normalizes the vectors of source one at a time, so that only the
+	 * normalized copies stay referenced.
+	 */
+	public NormalizedVectors(String[] ids, Source source) throws IOException {
+		this.ids = ids;
+		this.vectors = new SparseVector[ids.length];
+		this.norms = new double[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			SparseVector raw = source.get(i);
+			norms[i] = raw.getNorm();
+			vectors[i] = raw.normalize();
+		}
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public String getId(int ordinal) {
+		return ids[ordinal];
+	}
+
+	public String[] getIds() {
+		return ids;
+	}
+
+	/**
+	 * Unit-length vector, or an all-zero vector if the original was zero.
+	 */
+	public SparseVector getVector(int ordinal) {
+		return vectors[ordinal];
+	}
+
+	public SparseVector[] getVectors() {
+		return vectors;
+	}
+
+	/**
+	 * Approximate heap size of the vectors and norms, estimated like
+	 * WeightVectorCache.sizeOf.
+	 */
+	public long getBytes() {
+		long bytes = 8L * norms.length;
+		for (SparseVector v : vectors) {
+			bytes += WeightVectorCache.sizeOf(v);
+		}
+		return bytes;
+	}
+
+	/**
+	 * L2 norm of the vector before normalization.
+	 */
+	public double getNorm(int ordinal) {
+		return norms[ordinal];
+	}
+
+	/**
+	 * Cosine between a unit-length vector and the vector at ordinal.
+	 */
+	public double cosine(SparseVector unit, int ordinal) {
+		return unit.dotProduct(vectors[ordinal]);
+	}
+
+	/**
+	 * Cosine between a unit-length vector scattered into a dense array (see
+	 * VectorKernels.scatter) and the vector at ordinal.
+	 */
+	public double cosine(float[] denseUnit, int ordinal) {
+		return VectorKernels.dot(vectors[ordinal], denseUnit);
+	}
+}
@@ -0,0 +1,168 @@
+package recsys.algorithms.cbf;
+
+/**
+ * Compact copy of the unit-length job vectors for candidate generation: every
+ * weight is quantized to a signed byte with one float scale per job
+ * (weight ~ q * scale, scale = max |weight| / 127) and stored term-major with
+ * the job ordinals, 5 bytes per posting instead of the 8 of SparseMatrix.
+ * Weights that round to zero are dropped.
+ *
+ * Users are quantized the same way per user and scored like
+ * BlockedSpMMScorer: a block of users walks the jobs one tile at a time and
+ * accumulates integer products into a tile-sized int array. The approximate
+ * cosine is the integer dot product times the two scales. Its error is small
+ * but can reorder jobs with close scores, so callers keep a few times more
+ * candidates than they need and rescore those with the float vectors.
+ */
+public class QuantizedJobMatrix {
+
+	public static final int DEFAULT_OVERSAMPLE = 4;
+
+	private final int numJobs;
+	private final int numTerms;
+	private final int[] termStart;
+	private final int[] postingJobs;
+	private final byte[] postingWeights;
+	private final float[] scales;
+	private final int userBlock;
+	private final int jobTile;
+
+	/**
+	 * @param jobs
+	 *            unit-length job vectors by ordinal
+	 * @param numTerms
+	 *            size of the term dictionary
+	 */
+	public QuantizedJobMatrix(SparseVector[] jobs, int numTerms, int userBlock, int jobTile) {
+		this.numJobs = jobs.length;
+		this.numTerms = numTerms;
+		this.userBlock = Math.max(1, userBlock);
+		this.jobTile = Math.max(1, jobTile);
+		scales = new float[numJobs];
+		termStart = new int[numTerms + 1];
+		for (int j = 0; j < numJobs; j++) {
+			SparseVector v = jobs[j];
+			scales[j] = scale(v.getValues(), 0, v.getNonZeroCount());
+			for (int k = 0; k < v.getNonZeroCount(); k++) {
+				if (quantize(v.getValue(k), scales[j]) != 0) {
+					termStart[v.getIndex(k) + 1]++;
+				}
+			}
+		}
+		for (int t = 0; t < numTerms; t++) {
+			termStart[t + 1] += termStart[t];
+		}
+		postingJobs = new int[termStart[numTerms]];
+		postingWeights = new byte[postingJobs.length];
+		int[] fill = new int[numTerms];
+		System.arraycopy(termStart, 0, fill, 0, numTerms);
+		for (int j = 0; j < numJobs; j++) {
+			SparseVector v = jobs[j];
+			for (int k = 0; k < v.getNonZeroCount(); k++) {
+				byte q = quantize(v.getValue(k), scales[j]);
+				if (q != 0) {
+					int p = fill[v.getIndex(k)]++;
+					postingJobs[p] = j;
+					postingWeights[p] = q;
+				}
+			}
+		}
+	}
+
+	public QuantizedJobMatrix(SparseVector[] jobs, int numTerms) {
+		this(jobs, numTerms, BlockedSpMMScorer.DEFAULT_USER_BLOCK, BlockedSpMMScorer.DEFAULT_JOB_TILE);
+	}
+
+	public int getNumJobs() {
+		return numJobs;
+	}
+
+	public int getUserBlock() {
+		return userBlock;
+	}
+
+	/**
+	 * Size of the quantized postings, scales and term offsets.
+	 */
+	public long getBytes() {
+		return 5L * postingJobs.length + 4L * scales.length + 4L * termStart.length;
+	}
+
+	public String getStatistics() {
+		return numJobs + " jobs, " + postingJobs.length + " postings, " + getBytes() / 1024 + " KB (float: "
+				+ (8L * postingJobs.length + 4L * termStart.length) / 1024 + " KB)";
+	}
+
+	/**
+	 * Offers the approximate cosine of every job sharing a term with user u,
+	 * u in [from, to), to candidates[u - from] with the job ordinal as id.
+	 *
+	 * @param users
+	 *            unit-length user profiles, one row per user
+	 * @return number of (user, job) pairs covered
+	 */
+	public long scoreBlock(SparseMatrix users, int from, int to, CBTopNJobs[] candidates) {
+		int[] userStart = users.getRowStart();
+		int[] userTerms = users.getColumns();
+		float[] userWeights = users.getValues();
+
+		int base = userStart[from];
+		int[] cursor = new int[userStart[to] - base];
+		int[] end = new int[cursor.length];
+		byte[] userQ = new byte[cursor.length];
+		float[] userScales = new float[to - from];
+		for (int u = from; u < to; u++) {
+			float scale = scale(userWeights, userStart[u], userStart[u + 1]);
+			userScales[u - from] = scale;
+			for (int p = userStart[u]; p < userStart[u + 1]; p++) {
+				int t = userTerms[p];
+				userQ[p - base] = quantize(userWeights[p], scale);
+				if (t < numTerms && userQ[p - base] != 0) {
+					cursor[p - base] = termStart[t];
+					end[p - base] = termStart[t + 1];
+				}
+			}
+		}
+		int[] acc = new int[Math.min(jobTile, Math.max(1, numJobs))];
+		for (int j0 = 0; j0 < numJobs; j0 += jobTile) {
+			int j1 = Math.min(numJobs, j0 + jobTile);
+			for (int u = from; u < to; u++) {
+				for (int p = userStart[u] - base; p < userStart[u + 1] - base; p++) {
+					int q = userQ[p];
+					int c = cursor[p];
+					int e = end[p];
+					while (c < e && postingJobs[c] < j1) {
+						acc[postingJobs[c] - j0] += q * postingWeights[c];
+						c++;
+					}
+					cursor[p] = c;
+				}
+				CBTopNJobs result = candidates[u - from];
+				float userScale = userScales[u - from];
+				for (int j = 0; j < j1 - j0; j++) {
+					int dot = acc[j];
+					if (dot != 0) {
+						acc[j] = 0;
+						float s = dot * userScale * scales[j0 + j];
+						if (s > 0.0f && result.accepts(s)) {
+							result.add(j0 + j, s);
+						}
+					}
+				}
+			}
+		}
+		return (long) (to - from) * numJobs;
+	}
+
+	private static float scale(float[] values, int from, int to) {
+		float max = 0.0f;
+		for (int i = from; i < to; i++) {
+			max = Math.max(max, Math.abs(values[i]));
+		}
+		return max / 127.0f;
+	}
+
+	private static byte quantize(float value, float scale) {
+		return scale > 0.0f ? (byte) Math.round(value / scale) : 0;
+	}
+}
@@ -0,0 +1,102 @@
+package recsys.algorithms.cbf;
+
+import java.util.Arrays;
+
+/**
+ * Mutable sum of sparse vectors: an open-addressing hash map from term id to
+ * weight. Adding a vector costs its number of terms, where SparseVector.add
+ * copies the whole sum, so building a vector from many parts is linear
+ * instead of quadratic. toVector() sorts the terms once at the end. Sums are
+ * accumulated in the order the parts are added, so the result is the same as
+ * chaining SparseVector.add.
+ */
+class SparseAccumulator {
+	private static final int EMPTY = -1;
+
+	private int[] keys;
+	private float[] values;
+	private int size = 0;
+
+	SparseAccumulator(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+		keys = new int[capacity];
+		values = new float[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Accumulator holding initial; initial is not modified.
+	 */
+	SparseAccumulator(SparseVector initial) {
+		this(initial.getNonZeroCount());
+		add(initial, 1.0f);
+	}
+
+	/**
+	 * this += scale * vector; term ids must not be negative.
+	 */
+	void add(SparseVector vector, float scale) {
+		int[] ids = vector.getIndices();
+		float[] weights = vector.getValues();
+		if ((size + ids.length) * 2 > keys.length) {
+			rehash(Integer.highestOneBit((size + ids.length) * 2 - 1) << 1);
+		}
+		for (int k = 0; k < ids.length; k++) {
+			int slot = slot(ids[k]);
+			if (keys[slot] == EMPTY) {
+				keys[slot] = ids[k];
+				values[slot] = scale * weights[k];
+				size++;
+			} else {
+				values[slot] += scale * weights[k];
+			}
+		}
+	}
+
+	/**
+	 * The accumulated sum with its term ids sorted.
+	 */
+	SparseVector toVector() {
+		int[] ids = new int[size];
+		int n = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != EMPTY) {
+				ids[n++] = keys[slot];
+			}
+		}
+		Arrays.sort(ids);
+		float[] weights = new float[size];
+		for (int k = 0; k < size; k++) {
+			weights[k] = values[slot(ids[k])];
+		}
+		return new SparseVector(ids, weights);
+	}
+
+	/**
+	 * Slot of id, or the empty slot it would go to.
+	 */
+	private int slot(int id) {
+		int mask = keys.length - 1;
+		int h = id * 0x9E3779B9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != id) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		float[] oldValues = values;
+		keys = new int[capacity];
+		values = new float[capacity];
+		Arrays.fill(keys, EMPTY);
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldKeys[slot] != EMPTY) {
+				int s = slot(oldKeys[slot]);
+				keys[s] = oldKeys[slot];
+				values[s] = oldValues[slot];
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package recsys.algorithms.cbf;
+
+/**
+ * Compressed sparse row matrix with int column ids and float values. The
+ * transpose of a CSR matrix is its compressed sparse column form, so a job
+ * matrix stored by rows becomes a term-major matrix of postings with
+ * transpose().
+ */
+public class SparseMatrix {
+
+	private final int numRows;
+	private final int numColumns;
+	private final int[] rowStart;
+	private final int[] columns;
+	private final float[] values;
+
+	public SparseMatrix(int numRows, int numColumns, int[] rowStart, int[] columns, float[] values) {
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+		this.rowStart = rowStart;
+		this.columns = columns;
+		this.values = values;
+	}
+
+	/**
+	 * Stacks the vectors as rows. When normalize is set every row is divided
+	 * by its L2 norm; rows with a zero norm are left empty.
+	 */
+	public static SparseMatrix fromRows(SparseVector[] rows, int numColumns, boolean normalize) {
+		int[] rowStart = new int[rows.length + 1];
+		for (int r = 0; r < rows.length; r++) {
+			int nnz = rows[r].getNonZeroCount();
+			if (normalize && !(rows[r].getNorm() > 0)) {
+				nnz = 0;
+			}
+			rowStart[r + 1] = rowStart[r] + nnz;
+		}
+		int[] columns = new int[rowStart[rows.length]];
+		float[] values = new float[columns.length];
+		for (int r = 0; r < rows.length; r++) {
+			SparseVector v = rows[r];
+			int p = rowStart[r];
+			if (p == rowStart[r + 1]) {
+				continue;
+			}
+			double norm = normalize ? v.getNorm() : 1.0d;
+			for (int k = 0; k < v.getNonZeroCount(); k++) {
+				columns[p] = v.getIndex(k);
+				values[p++] = (float) (v.getValue(k) / norm);
+			}
+		}
+		return new SparseMatrix(rows.length, numColumns, rowStart, columns, values);
+	}
+
+	/**
+	 * Transposed copy; row ids end up sorted within every column.
+	 */
+	public SparseMatrix transpose() {
+		int[] start = new int[numColumns + 1];
+		for (int p = 0; p < columns.length; p++) {
+			start[columns[p] + 1]++;
+		}
+		for (int c = 0; c < numColumns; c++) {
+			start[c + 1] += start[c];
+		}
+		int[] fill = new int[numColumns];
+		System.arraycopy(start, 0, fill, 0, numColumns);
+		int[] rows = new int[columns.length];
+		float[] vals = new float[columns.length];
+		for (int r = 0; r < numRows; r++) {
+			for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+				int q = fill[columns[p]]++;
+				rows[q] = r;
+				vals[q] = values[p];
+			}
+		}
+		return new SparseMatrix(numColumns, numRows, start, rows, vals);
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	public int getNonZeroCount() {
+		return columns.length;
+	}
+
+	public int[] getRowStart() {
+		return rowStart;
+	}
+
+	public int[] getColumns() {
+		return columns;
+	}
+
+	public float[] getValues() {
+		return values;
+	}
+}
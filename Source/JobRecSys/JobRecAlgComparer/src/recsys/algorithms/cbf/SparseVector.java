@@ -0,0 +1,172 @@
+package recsys.algorithms.cbf;
+
+import java.util.Arrays;
+
+/**
+ * Sparse term-weight vector: term ids are kept sorted in ascending order so
+ * dot products and sums can be computed by merging the two id lists. Cost is
+ * proportional to the number of non-zero terms, not the vocabulary size.
+ */
+public class SparseVector {
+
+	private static final int[] NO_INDICES = new int[0];
+	private static final float[] NO_VALUES = new float[0];
+
+	private final int[] indices;
+	private final float[] values;
+	private double norm = -1.0d;
+
+	/**
+	 * Wraps already sorted, duplicate-free term ids and their weights. The
+	 * arrays are not copied.
+	 */
+	public SparseVector(int[] indices, float[] values) {
+		this.indices = indices;
+		this.values = values;
+	}
+
+	public SparseVector() {
+		this(NO_INDICES, NO_VALUES);
+	}
+
+	/**
+	 * Builds a vector from unsorted term ids, dropping zero weights.
+	 */
+	public static SparseVector fromUnsorted(int[] ids, float[] weights, int length) {
+		long[] packed = new long[length];
+		int n = 0;
+		for (int i = 0; i < length; i++) {
+			if (weights[i] != 0.0f) {
+				packed[n++] = ((long) ids[i] << 32) | (Float.floatToRawIntBits(weights[i]) & 0xffffffffL);
+			}
+		}
+		Arrays.sort(packed, 0, n);
+		int[] idx = new int[n];
+		float[] val = new float[n];
+		for (int i = 0; i < n; i++) {
+			idx[i] = (int) (packed[i] >>> 32);
+			val[i] = Float.intBitsToFloat((int) packed[i]);
+		}
+		return new SparseVector(idx, val);
+	}
+
+	public int getNonZeroCount() {
+		return indices.length;
+	}
+
+	public int getIndex(int k) {
+		return indices[k];
+	}
+
+	public float getValue(int k) {
+		return values[k];
+	}
+
+	public int[] getIndices() {
+		return indices;
+	}
+
+	public float[] getValues() {
+		return values;
+	}
+
+	public double dotProduct(SparseVector other) {
+		int[] ai = indices;
+		int[] bi = other.indices;
+		float[] av = values;
+		float[] bv = other.values;
+		int i = 0;
+		int j = 0;
+		double sum = 0.0d;
+		while (i < ai.length && j < bi.length) {
+			int a = ai[i];
+			int b = bi[j];
+			if (a == b) {
+				sum += (double) av[i++] * bv[j++];
+			} else if (a < b) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return sum;
+	}
+
+	public double getNorm() {
+		if (norm < 0) {
+			double sum = 0.0d;
+			for (float v : values) {
+				sum += (double) v * v;
+			}
+			norm = Math.sqrt(sum);
+		}
+		return norm;
+	}
+
+	/**
+	 * Returns this vector divided by its norm. The copy reports a norm of
+	 * exactly 1 (0 for an all-zero vector), so a cosine against it is a plain
+	 * dot product.
+	 */
+	public SparseVector normalize() {
+		double n = getNorm();
+		float[] val = new float[values.length];
+		if (n > 0) {
+			for (int k = 0; k < values.length; k++) {
+				val[k] = (float) (values[k] / n);
+			}
+		}
+		SparseVector unit = new SparseVector(indices, val);
+		unit.norm = n > 0 ? 1.0d : 0.0d;
+		return unit;
+	}
+
+	/**
+	 * Returns the sum of this vector and other as a new vector.
+	 */
+	public SparseVector add(SparseVector other) {
+		return add(other, 1.0f);
+	}
+
+	/**
+	 * Returns this + scale * other as a new vector.
+	 */
+	public SparseVector add(SparseVector other, float scale) {
+		int[] ai = indices;
+		int[] bi = other.indices;
+		float[] av = values;
+		float[] bv = other.values;
+		int[] idx = new int[ai.length + bi.length];
+		float[] val = new float[idx.length];
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < ai.length && j < bi.length) {
+			int a = ai[i];
+			int b = bi[j];
+			if (a == b) {
+				idx[n] = a;
+				val[n++] = av[i++] + scale * bv[j++];
+			} else if (a < b) {
+				idx[n] = a;
+				val[n++] = av[i++];
+			} else {
+				idx[n] = b;
+				val[n++] = scale * bv[j++];
+			}
+		}
+		while (i < ai.length) {
+			idx[n] = ai[i];
+			val[n++] = av[i++];
+		}
+		while (j < bi.length) {
+			idx[n] = bi[j];
+			val[n++] = scale * bv[j++];
+		}
+		if (n < idx.length) {
+			idx = Arrays.copyOf(idx, n);
+			val = Arrays.copyOf(val, n);
+		}
+		return new SparseVector(idx, val);
+	}
+}
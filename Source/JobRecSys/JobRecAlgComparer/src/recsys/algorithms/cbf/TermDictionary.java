@@ -0,0 +1,163 @@
+package recsys.algorithms.cbf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Frozen term dictionary of the CB model. Every corpus term gets a dense int
+ * id; ids follow Lucene's byte order of the terms, which is also the order in
+ * which a document term vector enumerates them, so a document can be mapped to
+ * ids with a forward search and without decoding terms to Strings.
+ */
+public class TermDictionary implements FeatureSpace {
+
+	private final byte[] termBytes;
+	private final int[] termOffsets;
+	private final int[] docFrequencies;
+	private final float[] idfs;
+
+	private TermDictionary(byte[] termBytes, int[] termOffsets, int[] docFrequencies, float[] idfs) {
+		this.termBytes = termBytes;
+		this.termOffsets = termOffsets;
+		this.docFrequencies = docFrequencies;
+		this.idfs = idfs;
+	}
+
+	/**
+	 * Builds the dictionary of the given terms, reading their document
+	 * frequencies from the index. idf = 1 + ln(numDocs) - ln(df).
+	 */
+	public static TermDictionary build(IndexReader reader, String field, Collection<String> terms, int numDocs)
+			throws IOException {
+		BytesRef[] sorted = new BytesRef[terms.size()];
+		int n = 0;
+		int totalLength = 0;
+		for (String t : terms) {
+			sorted[n] = new BytesRef(t);
+			totalLength += sorted[n++].length;
+		}
+		Arrays.sort(sorted);
+		byte[] bytes = new byte[totalLength];
+		int[] offsets = new int[n + 1];
+		int[] df = new int[n];
+		float[] idf = new float[n];
+		double logN = Math.log(numDocs);
+		for (int i = 0; i < n; i++) {
+			BytesRef t = sorted[i];
+			System.arraycopy(t.bytes, t.offset, bytes, offsets[i], t.length);
+			offsets[i + 1] = offsets[i] + t.length;
+			df[i] = reader.docFreq(new Term(field, t));
+			idf[i] = (float) (1 + logN - Math.log(df[i]));
+		}
+		return new TermDictionary(bytes, offsets, df, idf);
+	}
+
+	@Override
+	public int size() {
+		return docFrequencies.length;
+	}
+
+	public int getDocFrequency(int id) {
+		return docFrequencies[id];
+	}
+
+	@Override
+	public float getIdf(int id) {
+		return idfs[id];
+	}
+
+	@Override
+	public String getTerm(int id) {
+		return new String(termBytes, termOffsets[id], termOffsets[id + 1] - termOffsets[id], StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int getId(String term) {
+		return getId(new BytesRef(term), 0);
+	}
+
+	/**
+	 * Returns the id of term, searching only ids >= fromId, or -1 when the
+	 * term is not in the dictionary.
+	 */
+	public int getId(BytesRef term, int fromId) {
+		int low = fromId;
+		int high = docFrequencies.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(mid, term);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Terms not in the dictionary are skipped.
+	 */
+	@Override
+	public SparseVector vectorize(Terms termVector, boolean idfWeighted) throws IOException {
+		int capacity = termVector.size() > 0 ? (int) termVector.size() : 16;
+		int[] ids = new int[capacity];
+		float[] weights = new float[capacity];
+		int n = 0;
+		int fromId = 0;
+		TermsEnum termsEnum = termVector.iterator(null);
+		BytesRef text = null;
+		while ((text = termsEnum.next()) != null) {
+			int id = getId(text, fromId);
+			if (id < 0) {
+				continue;
+			}
+			if (n == ids.length) {
+				ids = Arrays.copyOf(ids, n * 2);
+				weights = Arrays.copyOf(weights, n * 2);
+			}
+			ids[n] = id;
+			weights[n++] = idfWeighted ? termsEnum.totalTermFreq() * idfs[id] : termsEnum.totalTermFreq();
+			fromId = id + 1;
+		}
+		if (n < ids.length) {
+			ids = Arrays.copyOf(ids, n);
+			weights = Arrays.copyOf(weights, n);
+		}
+		return new SparseVector(ids, weights);
+	}
+
+	@Override
+	public boolean isSigned() {
+		return false;
+	}
+
+	@Override
+	public String getName() {
+		return "dictionary";
+	}
+
+	private int compare(int id, BytesRef term) {
+		int a = termOffsets[id];
+		int aEnd = termOffsets[id + 1];
+		int b = term.offset;
+		int bEnd = term.offset + term.length;
+		while (a < aEnd && b < bEnd) {
+			int diff = (termBytes[a++] & 0xff) - (term.bytes[b++] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return (aEnd - a) - (bEnd - b);
+	}
+}
@@ -0,0 +1,292 @@
+package recsys.algorithms.cbf;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import utils.AtomicFileWriter;
+
+/**
+ * Rocchio-style user profiles: cvWeight times the term frequencies of the CV
+ * plus likedWeight times the term frequencies of every liked job. Profiles
+ * hold raw term frequency sums, so the idf of the current corpus can be
+ * applied when a profile is scored and a stored profile stays valid when
+ * other documents change.
+ *
+ * Ratings are applied one at a time as they are read. A profile saved by an
+ * earlier run is reused as long as the user's CV and rated jobs still have the
+ * content hashes they had; ratings it already contains cost nothing and only
+ * new ratings are added. A user whose CV or rated jobs changed, or who lost a
+ * rating, is rebuilt from scratch. While ratings are read a profile is summed
+ * in a SparseAccumulator and turned into a SparseVector once, by endRatings().
+ */
+public class UserProfileStore {
+	private static Logger log = Logger.getLogger("Author: Luan");
+
+	private static final int FORMAT = 1;
+
+	/**
+	 * Term frequencies of a document by Lucene doc id.
+	 */
+	public interface DocumentSource {
+		SparseVector termFrequencies(int docId) throws IOException;
+	}
+
+	private static class Profile {
+		String cvHash;
+		SparseVector tf;
+		// tf plus the ratings added since; null until the first rating of a run
+		SparseAccumulator sums;
+		// rated jobs contained in tf, with their content hashes
+		ArrayList<String> jobs = new ArrayList<String>();
+		ArrayList<String> jobHashes = new ArrayList<String>();
+		// stored ratings not seen again yet in this run, with their counts
+		HashMap<String, Integer> pending = new HashMap<String, Integer>();
+		// ratings seen in this run
+		ArrayList<String> rated = new ArrayList<String>();
+	}
+
+	private final float cvWeight;
+	private final float likedWeight;
+	private final String analyzer;
+	private HashMap<String, Profile> profiles = new HashMap<String, Profile>();
+	private HashMap<String, Profile> stored = new HashMap<String, Profile>();
+
+	private Map<String, Integer> users;
+	private Map<String, Integer> jobs;
+	private String[] docHashes;
+	private DocumentSource source;
+	private boolean active = false;
+
+	private int reused;
+	private int created;
+	private int rebuilt;
+	private int ratingsApplied;
+	private int ratingsKept;
+
+	/**
+	 * @param analyzer
+	 *            name of the analyzer and feature space the term frequencies
+	 *            come from; stored profiles of another one are discarded
+	 */
+	public UserProfileStore(float cvWeight, float likedWeight, String analyzer) {
+		this.cvWeight = cvWeight;
+		this.likedWeight = likedWeight;
+		this.analyzer = analyzer;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Starts a run over the given documents: validates the stored profiles
+	 * and gives every other user a profile made of its CV alone.
+	 *
+	 * @param docHashes
+	 *            content hash of every document by doc id
+	 */
+	public void beginRatings(Map<String, Integer> users, Map<String, Integer> jobs, String[] docHashes,
+			DocumentSource source) throws IOException {
+		this.users = users;
+		this.jobs = jobs;
+		this.docHashes = docHashes;
+		this.source = source;
+		reused = created = rebuilt = ratingsApplied = ratingsKept = 0;
+		HashMap<String, Profile> current = new HashMap<String, Profile>(users.size() * 2);
+		for (Map.Entry<String, Integer> e : users.entrySet()) {
+			String cvHash = docHashes[e.getValue()];
+			Profile p = stored.remove(e.getKey());
+			if (p != null && p.tf != null && cvHash.equals(p.cvHash) && ratedJobsUnchanged(p)) {
+				p.pending = new HashMap<String, Integer>();
+				for (String job : p.jobs) {
+					Integer count = p.pending.get(job);
+					p.pending.put(job, count == null ? 1 : count + 1);
+				}
+				reused++;
+			} else {
+				p = newProfile(e.getValue(), cvHash);
+				created++;
+			}
+			p.rated = new ArrayList<String>();
+			current.put(e.getKey(), p);
+		}
+		stored.clear();
+		profiles = current;
+		active = true;
+	}
+
+	private boolean ratedJobsUnchanged(Profile p) {
+		for (int i = 0; i < p.jobs.size(); i++) {
+			Integer doc = jobs.get(p.jobs.get(i));
+			if (doc == null || !docHashes[doc].equals(p.jobHashes.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Profile newProfile(int cvDoc, String cvHash) throws IOException {
+		Profile p = new Profile();
+		p.cvHash = cvHash;
+		p.tf = new SparseVector().add(source.termFrequencies(cvDoc), cvWeight);
+		return p;
+	}
+
+	/**
+	 * Adds a liked job to the user's profile unless the stored profile
+	 * already contains it. Ratings of unknown users or jobs are ignored.
+	 */
+	public void addRating(String user, String job) throws IOException {
+		Profile p = profiles.get(user);
+		Integer doc = jobs.get(job);
+		if (p == null || doc == null) {
+			return;
+		}
+		p.rated.add(job);
+		Integer count = p.pending.remove(job);
+		if (count != null) {
+			if (count > 1) {
+				p.pending.put(job, count - 1);
+			}
+			ratingsKept++;
+			return;
+		}
+		if (p.sums == null) {
+			p.sums = new SparseAccumulator(p.tf);
+		}
+		p.sums.add(source.termFrequencies(doc), likedWeight);
+		p.jobs.add(job);
+		p.jobHashes.add(docHashes[doc]);
+		ratingsApplied++;
+	}
+
+	/**
+	 * Ends the run: users who lost ratings are rebuilt from the ratings seen
+	 * in this run.
+	 */
+	public void endRatings() throws IOException {
+		for (Map.Entry<String, Profile> e : profiles.entrySet()) {
+			Profile p = e.getValue();
+			if (!p.pending.isEmpty()) {
+				Profile fresh = newProfile(users.get(e.getKey()), p.cvHash);
+				fresh.sums = new SparseAccumulator(fresh.tf);
+				for (String job : p.rated) {
+					int doc = jobs.get(job);
+					fresh.sums.add(source.termFrequencies(doc), likedWeight);
+					fresh.jobs.add(job);
+					fresh.jobHashes.add(docHashes[doc]);
+				}
+				fresh.rated = p.rated;
+				e.setValue(fresh);
+				p = fresh;
+				rebuilt++;
+			}
+			if (p.sums != null) {
+				p.tf = p.sums.toVector();
+				p.sums = null;
+			}
+		}
+		active = false;
+		log.info("User profiles: " + reused + " reused, " + created + " created, " + rebuilt + " rebuilt; "
+				+ ratingsApplied + " ratings applied, " + ratingsKept + " already in stored profiles");
+	}
+
+	/**
+	 * Term frequency sums of the user's profile, or null for unknown users.
+	 */
+	public SparseVector getTermFrequencies(String user) {
+		Profile p = profiles.get(user);
+		return p != null ? p.tf : null;
+	}
+
+	public int size() {
+		return profiles.size();
+	}
+
+	/**
+	 * Writes all profiles with their terms spelled out, so they can be loaded
+	 * against a different dictionary.
+	 */
+	public void save(File file, FeatureSpace dictionary) throws IOException {
+		AtomicFileWriter.write(file, new AtomicFileWriter.Content() {
+			@Override
+			public void write(DataOutputStream out) throws IOException {
+				out.writeInt(FORMAT);
+				out.writeUTF(analyzer);
+				out.writeFloat(cvWeight);
+				out.writeFloat(likedWeight);
+				out.writeInt(profiles.size());
+				for (Map.Entry<String, Profile> e : profiles.entrySet()) {
+					Profile p = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeUTF(p.cvHash);
+					out.writeInt(p.jobs.size());
+					for (int i = 0; i < p.jobs.size(); i++) {
+						out.writeUTF(p.jobs.get(i));
+						out.writeUTF(p.jobHashes.get(i));
+					}
+					out.writeInt(p.tf.getNonZeroCount());
+					for (int k = 0; k < p.tf.getNonZeroCount(); k++) {
+						out.writeUTF(dictionary.getTerm(p.tf.getIndex(k)));
+						out.writeFloat(p.tf.getValue(k));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads profiles saved by an earlier run; they are checked against the
+	 * documents by the next beginRatings(). Profiles with terms the
+	 * dictionary no longer has are dropped.
+	 */
+	public void load(File file, FeatureSpace dictionary) throws IOException {
+		stored.clear();
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != FORMAT || !analyzer.equals(in.readUTF()) || in.readFloat() != cvWeight
+					|| in.readFloat() != likedWeight) {
+				log.info("Stored user profiles were built with other settings, rebuilding all");
+				return;
+			}
+			int n = in.readInt();
+			for (int u = 0; u < n; u++) {
+				String user = in.readUTF();
+				Profile p = new Profile();
+				p.cvHash = in.readUTF();
+				int rated = in.readInt();
+				for (int i = 0; i < rated; i++) {
+					p.jobs.add(in.readUTF());
+					p.jobHashes.add(in.readUTF());
+				}
+				int nnz = in.readInt();
+				int[] ids = new int[nnz];
+				float[] values = new float[nnz];
+				boolean known = true;
+				for (int k = 0; k < nnz; k++) {
+					ids[k] = dictionary.getId(in.readUTF());
+					values[k] = in.readFloat();
+					known &= ids[k] >= 0;
+				}
+				if (known) {
+					p.tf = SparseVector.fromUnsorted(ids, values, nnz);
+				}
+				stored.put(user, p);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package recsys.algorithms.cbf;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Inner loops of CB scoring. The loops are unrolled by four into independent
+ * partial sums, so consecutive iterations do not wait on one accumulator and
+ * the JIT can keep several multiply-adds in flight. Sums are kept in double
+ * like SparseVector.dotProduct; the different summation order can change the
+ * last bits of a score.
+ *
+ * The dot products and axpy have a second implementation on the JDK Vector
+ * API, VectorApiKernels in src-vector, which is compiled separately because
+ * the project targets Java 8. It is used when its class is on the class path
+ * and the JVM runs with --add-modules jdk.incubator.vector, unless
+ * -Dcb.kernels=scalar is set; otherwise the scalar loops below are used.
+ */
+public final class VectorKernels {
+	private static Logger log = Logger.getLogger("Author: Luan");
+
+	/**
+	 * The kernels VectorApiKernels implements, with the same contracts as the
+	 * static methods of the same name.
+	 */
+	interface Accelerated {
+		double dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+		double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+		double dot(int[] indices, float[] values, float[] dense);
+
+		void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length);
+	}
+
+	// shorter loops stay scalar, the vector setup does not pay off
+	private static final int MIN_VECTOR_LENGTH = 16;
+
+	private static final Accelerated ACCELERATED = loadAccelerated();
+
+	private VectorKernels() {
+	}
+
+	private static Accelerated loadAccelerated() {
+		if ("scalar".equals(System.getProperty("cb.kernels"))) {
+			return null;
+		}
+		try {
+			Accelerated kernels = (Accelerated) Class.forName("recsys.algorithms.cbf.VectorApiKernels")
+					.getDeclaredConstructor().newInstance();
+			log.info("CB kernels: Vector API, " + kernels);
+			return kernels;
+		} catch (ClassNotFoundException | LinkageError e) {
+			// not compiled, or jdk.incubator.vector not available in this JVM
+			log.info("CB kernels: scalar");
+			return null;
+		} catch (Exception e) {
+			log.error("Cannot load the Vector API kernels, using the scalar ones", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the Vector API kernels are in use.
+	 */
+	public static boolean isAccelerated() {
+		return ACCELERATED != null;
+	}
+
+	/**
+	 * Dot product of the first length entries of two dense vectors.
+	 */
+	public static double dot(float[] a, float[] b, int length) {
+		return dot(a, 0, b, 0, length);
+	}
+
+	/**
+	 * Dot product of a[aOffset, aOffset + length) and b[bOffset, bOffset +
+	 * length), e.g. two rows of row-major matrices.
+	 */
+	public static double dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		if (ACCELERATED != null && length >= MIN_VECTOR_LENGTH) {
+			return ACCELERATED.dot(a, aOffset, b, bOffset, length);
+		}
+		double s0 = 0.0d, s1 = 0.0d, s2 = 0.0d, s3 = 0.0d;
+		int i = 0;
+		for (int end = length & ~3; i < end; i += 4) {
+			s0 += (double) a[aOffset + i] * b[bOffset + i];
+			s1 += (double) a[aOffset + i + 1] * b[bOffset + i + 1];
+			s2 += (double) a[aOffset + i + 2] * b[bOffset + i + 2];
+			s3 += (double) a[aOffset + i + 3] * b[bOffset + i + 3];
+		}
+		for (; i < length; i++) {
+			s0 += (double) a[aOffset + i] * b[bOffset + i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	public static double dot(double[] a, double[] b, int length) {
+		return dot(a, 0, b, 0, length);
+	}
+
+	public static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+		if (ACCELERATED != null && length >= MIN_VECTOR_LENGTH) {
+			return ACCELERATED.dot(a, aOffset, b, bOffset, length);
+		}
+		double s0 = 0.0d, s1 = 0.0d, s2 = 0.0d, s3 = 0.0d;
+		int i = 0;
+		for (int end = length & ~3; i < end; i += 4) {
+			s0 += a[aOffset + i] * b[bOffset + i];
+			s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+			s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+		}
+		for (; i < length; i++) {
+			s0 += a[aOffset + i] * b[bOffset + i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * y[yOffset, yOffset + length) += alpha * x[xOffset, xOffset + length).
+	 */
+	public static void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+		if (ACCELERATED != null && length >= MIN_VECTOR_LENGTH) {
+			ACCELERATED.axpy(alpha, x, xOffset, y, yOffset, length);
+			return;
+		}
+		int i = 0;
+		for (int end = length & ~3; i < end; i += 4) {
+			y[yOffset + i] += alpha * x[xOffset + i];
+			y[yOffset + i + 1] += alpha * x[xOffset + i + 1];
+			y[yOffset + i + 2] += alpha * x[xOffset + i + 2];
+			y[yOffset + i + 3] += alpha * x[xOffset + i + 3];
+		}
+		for (; i < length; i++) {
+			y[yOffset + i] += alpha * x[xOffset + i];
+		}
+	}
+
+	public static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+		int i = 0;
+		for (int end = length & ~3; i < end; i += 4) {
+			y[yOffset + i] += alpha * x[xOffset + i];
+			y[yOffset + i + 1] += alpha * x[xOffset + i + 1];
+			y[yOffset + i + 2] += alpha * x[xOffset + i + 2];
+			y[yOffset + i + 3] += alpha * x[xOffset + i + 3];
+		}
+		for (; i < length; i++) {
+			y[yOffset + i] += alpha * x[xOffset + i];
+		}
+	}
+
+	/**
+	 * Dot product of a sparse vector with a dense one: the dense entries at
+	 * the sparse indices are gathered, so there is no merge and no branch per
+	 * term.
+	 */
+	public static double dot(SparseVector sparse, float[] dense) {
+		int[] idx = sparse.getIndices();
+		float[] val = sparse.getValues();
+		int length = idx.length;
+		if (ACCELERATED != null && length >= MIN_VECTOR_LENGTH) {
+			return ACCELERATED.dot(idx, val, dense);
+		}
+		double s0 = 0.0d, s1 = 0.0d, s2 = 0.0d, s3 = 0.0d;
+		int k = 0;
+		for (int end = length & ~3; k < end; k += 4) {
+			s0 += (double) val[k] * dense[idx[k]];
+			s1 += (double) val[k + 1] * dense[idx[k + 1]];
+			s2 += (double) val[k + 2] * dense[idx[k + 2]];
+			s3 += (double) val[k + 3] * dense[idx[k + 3]];
+		}
+		for (; k < length; k++) {
+			s0 += (double) val[k] * dense[idx[k]];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Writes the weights of sparse into dense, which must be zero at its
+	 * indices; clear() undoes it.
+	 */
+	public static void scatter(SparseVector sparse, float[] dense) {
+		int[] idx = sparse.getIndices();
+		float[] val = sparse.getValues();
+		for (int k = 0; k < idx.length; k++) {
+			dense[idx[k]] = val[k];
+		}
+	}
+
+	public static void clear(SparseVector sparse, float[] dense) {
+		int[] idx = sparse.getIndices();
+		for (int k = 0; k < idx.length; k++) {
+			dense[idx[k]] = 0.0f;
+		}
+	}
+
+	/**
+	 * Hybrid score of the first length jobs:
+	 * out = alpha * cf + (1 - alpha) * (1 + 4 * cb / cbMax),
+	 * i.e. the CB score rescaled to the 1..5 rating range and blended with the
+	 * CF rating.
+	 */
+	public static void blend(double[] cf, double[] cb, int length, double cbMax, double alpha, double[] out) {
+		double scale = 4.0d / cbMax;
+		double beta = 1.0d - alpha;
+		int i = 0;
+		for (int end = length & ~3; i < end; i += 4) {
+			out[i] = cf[i] * alpha + beta * (1.0d + cb[i] * scale);
+			out[i + 1] = cf[i + 1] * alpha + beta * (1.0d + cb[i + 1] * scale);
+			out[i + 2] = cf[i + 2] * alpha + beta * (1.0d + cb[i + 2] * scale);
+			out[i + 3] = cf[i + 3] * alpha + beta * (1.0d + cb[i + 3] * scale);
+		}
+		for (; i < length; i++) {
+			out[i] = cf[i] * alpha + beta * (1.0d + cb[i] * scale);
+		}
+	}
+}
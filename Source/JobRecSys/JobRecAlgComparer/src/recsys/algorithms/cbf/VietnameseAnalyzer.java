@@ -0,0 +1,34 @@
+package recsys.algorithms.cbf;
+
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.util.CharTokenizer;
+import org.apache.lucene.util.Version;
+
+/**
+ * SimpleAnalyzer for text segmented by VietnameseSegmenter: tokens are runs of
+ * letters and '_', so a compound word such as "cong_nghe" stays one term,
+ * and are lower-cased.
+ */
+public final class VietnameseAnalyzer extends Analyzer {
+
+	private final Version matchVersion;
+
+	public VietnameseAnalyzer(Version matchVersion) {
+		this.matchVersion = matchVersion;
+	}
+
+	@Override
+	protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+		Tokenizer source = new CharTokenizer(matchVersion, reader) {
+			@Override
+			protected boolean isTokenChar(int c) {
+				return Character.isLetter(c) || c == '_';
+			}
+		};
+		return new TokenStreamComponents(source, new LowerCaseFilter(matchVersion, source));
+	}
+}
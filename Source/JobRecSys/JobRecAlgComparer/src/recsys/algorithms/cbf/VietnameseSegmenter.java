@@ -0,0 +1,166 @@
+package recsys.algorithms.cbf;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import vn.hus.nlp.tokenizer.Tokenizer;
+import vn.hus.nlp.tokenizer.TokenizerOptions;
+import vn.hus.nlp.tokenizer.segmenter.AbstractResolver;
+import vn.hus.nlp.tokenizer.segmenter.Segmenter;
+import vn.hus.nlp.tokenizer.segmenter.UnigramResolver;
+import vn.hus.nlp.tokenizer.tokens.TaggedWord;
+
+/**
+ * Word segmentation of Vietnamese field values with the bundled vn.hus.nlp
+ * tokenizer; the syllables of a compound word are joined with '_' so that
+ * VietnameseAnalyzer indexes the word as one term.
+ *
+ * VietTokenizer keeps its tokenizer in a static field, so it cannot be used
+ * from several threads at once. This class does what VietTokenizer.segment
+ * does on a Tokenizer of its own per thread instead: the indexing workers
+ * segment in parallel without a lock. The lexicon automata of the segmenter
+ * are static and the unigram model is read only, so those are loaded once
+ * and shared. Field values repeat a lot (categories, locations, tags), so
+ * segmented values up to MAX_MEMO_LENGTH characters are memoized in a
+ * concurrent map that is read without locking.
+ */
+public class VietnameseSegmenter {
+	private static Logger log = Logger.getLogger("Author: Luan");
+
+	public static final int MAX_MEMO_LENGTH = 256;
+	public static final int MAX_MEMO_ENTRIES = 200000;
+
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private static VietnameseSegmenter instance;
+
+	private final Properties properties;
+	private final AbstractResolver resolver;
+	private final ThreadLocal<Tokenizer> tokenizers = new ThreadLocal<Tokenizer>() {
+		@Override
+		protected Tokenizer initialValue() {
+			return newTokenizer();
+		}
+	};
+	private final ConcurrentHashMap<String, String> memo = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger memoized = new AtomicInteger();
+	private final AtomicInteger tokenizerCount = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private VietnameseSegmenter(Properties properties, AbstractResolver resolver) {
+		this.properties = properties;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * The shared segmenter, loading the model on first use.
+	 *
+	 * @param properties
+	 *            tokenizer.properties of the vn.hus.nlp model files, or null
+	 *            for the tokenizer's default location
+	 * @return null if the model could not be loaded
+	 */
+	public static synchronized VietnameseSegmenter getInstance(String properties) {
+		if (instance == null) {
+			String file = properties != null ? properties : "tokenizer.properties";
+			try {
+				Properties p = new Properties();
+				InputStream in = new FileInputStream(file);
+				try {
+					p.load(in);
+				} finally {
+					in.close();
+				}
+				VietnameseSegmenter segmenter = new VietnameseSegmenter(p,
+						new UnigramResolver(p.getProperty("unigramModel")));
+				// loads the static lexicon automata before workers create their tokenizers
+				if (segmenter.tokenizers.get() == null) {
+					return null;
+				}
+				instance = segmenter;
+			} catch (Exception e) {
+				log.error("Cannot load Vietnamese tokenizer model from " + file, e);
+				return null;
+			}
+		}
+		return instance;
+	}
+
+	private Tokenizer newTokenizer() {
+		try {
+			Tokenizer tokenizer = new Tokenizer(properties, new Segmenter(properties, resolver));
+			tokenizerCount.incrementAndGet();
+			return tokenizer;
+		} catch (Exception e) {
+			log.error("Cannot create a Vietnamese tokenizer", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Segmented form of value; null stays null.
+	 */
+	public String segment(String value) {
+		if (value == null || value.isEmpty()) {
+			return value;
+		}
+		boolean memoize = value.length() <= MAX_MEMO_LENGTH;
+		if (memoize) {
+			String segmented = memo.get(value);
+			if (segmented != null) {
+				hits.incrementAndGet();
+				return segmented;
+			}
+		}
+		misses.incrementAndGet();
+		String segmented = segment(tokenizers.get(), value);
+		if (memoize && memoized.get() < MAX_MEMO_ENTRIES && memo.putIfAbsent(value, segmented) == null) {
+			memoized.incrementAndGet();
+		}
+		return segmented;
+	}
+
+	/**
+	 * VietTokenizer.segment on the given tokenizer; value itself if it cannot
+	 * be segmented.
+	 */
+	private static String segment(Tokenizer tokenizer, String value) {
+		if (tokenizer == null) {
+			return value;
+		}
+		StringBuilder rs = new StringBuilder(value.length() + 16);
+		try {
+			tokenizer.tokenize(new StringReader(value));
+			for (TaggedWord word : tokenizer.getResult()) {
+				String text = word.toString();
+				if (TokenizerOptions.USE_UNDERSCORE) {
+					rs.append(WHITESPACE.matcher(text).replaceAll("_"));
+				} else {
+					rs.append('[').append(text).append(']');
+				}
+				rs.append(' ');
+			}
+		} catch (IOException e) {
+			log.error("Cannot segment " + value, e);
+			return value;
+		}
+		return rs.toString().trim();
+	}
+
+	public String getStatistics() {
+		long h = hits.get();
+		long m = misses.get();
+		return "hits=" + h + ", misses=" + m + ", memoized=" + memoized.get() + ", hitRate="
+				+ (h + m > 0 ? (double) h / (h + m) : 0.0d) + ", tokenizers=" + tokenizerCount.get();
+	}
+}
@@ -0,0 +1,103 @@
+package recsys.algorithms.cbf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of document weight vectors keyed by Lucene doc id, bounded by an
+ * estimate of the heap the cached vectors take. The least recently used
+ * vectors are evicted once the budget is exceeded.
+ */
+public class WeightVectorCache {
+
+	private final LinkedHashMap<Integer, SparseVector> vectors = new LinkedHashMap<Integer, SparseVector>(1024, 0.75f,
+			true);
+	private long budgetBytes;
+	private long usedBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public WeightVectorCache(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * Approximate heap size of a vector: object and array headers plus 4
+	 * bytes per id and 4 bytes per weight.
+	 */
+	public static long sizeOf(SparseVector v) {
+		return 64L + 8L * v.getNonZeroCount();
+	}
+
+	public synchronized SparseVector get(int docId) {
+		SparseVector v = vectors.get(docId);
+		if (v == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return v;
+	}
+
+	public synchronized void put(int docId, SparseVector v) {
+		SparseVector old = vectors.put(docId, v);
+		if (old != null) {
+			usedBytes -= sizeOf(old);
+		}
+		usedBytes += sizeOf(v);
+		evict();
+	}
+
+	/**
+	 * Drops the vector of docId, e.g. once a copy of it is kept elsewhere.
+	 */
+	public synchronized void remove(int docId) {
+		SparseVector old = vectors.remove(docId);
+		if (old != null) {
+			usedBytes -= sizeOf(old);
+		}
+	}
+
+	/**
+	 * Whether another vector of the given size fits without evicting.
+	 */
+	public synchronized boolean hasRoomFor(SparseVector v) {
+		return usedBytes + sizeOf(v) <= budgetBytes;
+	}
+
+	public synchronized void setBudget(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+		evict();
+	}
+
+	public synchronized void clear() {
+		vectors.clear();
+		usedBytes = 0;
+	}
+
+	public synchronized int size() {
+		return vectors.size();
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public synchronized String getStatistics() {
+		long lookups = hits + misses;
+		return "vectors=" + vectors.size() + ", bytes=" + usedBytes + "/" + budgetBytes + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions + ", hitRate="
+				+ (lookups == 0 ? 0.0d : hits * 1.0d / lookups);
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Integer, SparseVector>> it = vectors.entrySet().iterator();
+		while (usedBytes > budgetBytes && it.hasNext()) {
+			usedBytes -= sizeOf(it.next().getValue());
+			it.remove();
+			evictions++;
+		}
+	}
+}
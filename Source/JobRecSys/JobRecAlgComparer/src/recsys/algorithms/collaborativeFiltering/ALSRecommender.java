@@ -0,0 +1,673 @@
+package recsys.algorithms.collaborativeFiltering;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+import recsys.algorithms.TopKAccumulator;
+import recsys.algorithms.cbf.VectorKernels;
+
+import utils.AtomicFileWriter;
+import utils.WorkerPool;
+
+/**
+ * Matrix factorization by alternating least squares: every user and item
+ * gets a vector of rank factors and a rating is predicted by their dot
+ * product. Each sweep solves all users with the item factors fixed and then
+ * all items with the user factors fixed; the rank x rank systems of one side
+ * are independent and are solved in parallel blocks.
+ *
+ * Explicit mode fits the ratings with weighted-lambda regularization
+ * (lambda times the number of ratings of the user or item). Implicit mode
+ * treats ratings above a threshold as positive feedback with confidence
+ * 1 + alpha * rating and every other pair as a zero with confidence 1, as in
+ * Hu, Koren and Volinsky; the shared Y^T Y term keeps a solve proportional
+ * to the number of positives of the user or item.
+ *
+ * Factors are floats, stored row by row (user or item ordinal times rank),
+ * and saved to a binary file that later tasks reuse while the parameters
+ * and the ratings are unchanged. recommend() scores every item the user has
+ * not rated against the user vector and keeps the best with a
+ * TopKAccumulator; the batch recommend() does the same for blocks of users,
+ * one tile of items at a time.
+ *
+ * As in the other recommenders, setPreference and removePreference go to the
+ * DataModel. The factors are not updated; the next task retrains them from
+ * the changed ratings.
+ */
+public class ALSRecommender extends AbstractRecommender {
+	private static Logger log = Logger.getLogger(ALSRecommender.class.getName());
+
+	private static final int FORMAT = 0x43464153; // "CFAS"
+
+	public static final int DEFAULT_RANK = 20;
+	public static final int DEFAULT_ITERATIONS = 10;
+	public static final double DEFAULT_LAMBDA = 0.065d;
+	public static final double DEFAULT_ALPHA = 10.0d;
+	public static final float DEFAULT_IMPLICIT_THRESHOLD = 3.0f;
+
+	/* users scored together by the batch recommend() */
+	static final int USER_BLOCK = 64;
+	/* floats of item factors per tile, sized for the L1 cache */
+	static final int ITEM_TILE_FLOATS = 4096;
+
+	private final int rank;
+	private final int[] userIds;
+	private final int[] itemIds;
+	private final float[] userFactors;
+	private final float[] itemFactors;
+	/* rated items of every user, for excluding them from recommendations */
+	private final int[] rowStart;
+	private final int[] rowItems;
+
+	private ALSRecommender(DataModel dataModel, int rank, int[] userIds, int[] itemIds, float[] userFactors,
+			float[] itemFactors, int[] rowStart, int[] rowItems) {
+		super(dataModel);
+		this.rank = rank;
+		this.userIds = userIds;
+		this.itemIds = itemIds;
+		this.userFactors = userFactors;
+		this.itemFactors = itemFactors;
+		this.rowStart = rowStart;
+		this.rowItems = rowItems;
+	}
+
+	/**
+	 * Parameters of a factorization; the key identifies a stored model.
+	 */
+	public static class Parameters {
+		public int rank = DEFAULT_RANK;
+		public int iterations = DEFAULT_ITERATIONS;
+		public double lambda = DEFAULT_LAMBDA;
+		public boolean implicit = false;
+		public double alpha = DEFAULT_ALPHA;
+		public float implicitThreshold = DEFAULT_IMPLICIT_THRESHOLD;
+		public long seed = 42L;
+		// workers of the training pool; 0 trains on the shared WorkerPool
+		public int threads = 0;
+
+		String key(File ratings) {
+			return rank + "|" + iterations + "|" + lambda + "|" + implicit + "|" + alpha + "|" + implicitThreshold
+					+ "|" + seed + "|" + ratings.length() + "|" + ratings.lastModified();
+		}
+	}
+
+	/**
+	 * Ratings by user and by item, with user and item ordinals.
+	 */
+	private static class Ratings {
+		int[] userIds;
+		int[] itemIds;
+		int[] rowStart;
+		int[] rowItems;
+		float[] rowValues;
+		int[] colStart;
+		int[] colUsers;
+		float[] colValues;
+	}
+
+	private static Ratings readRatings(DataModel dataModel) throws TasteException {
+		Ratings r = new Ratings();
+		r.userIds = ids(dataModel.getUserIDs(), dataModel.getNumUsers());
+		r.itemIds = ids(dataModel.getItemIDs(), dataModel.getNumItems());
+		int numUsers = r.userIds.length;
+		int numItems = r.itemIds.length;
+		r.rowStart = new int[numUsers + 1];
+		int[] items = new int[1024];
+		float[] values = new float[1024];
+		int n = 0;
+		for (int u = 0; u < numUsers; u++) {
+			PreferenceArray prefs = dataModel.getPreferencesFromUser(r.userIds[u]);
+			for (int k = 0; k < prefs.length(); k++) {
+				int i = Arrays.binarySearch(r.itemIds, (int) prefs.getItemID(k));
+				if (i < 0) {
+					continue;
+				}
+				if (n == items.length) {
+					items = Arrays.copyOf(items, n * 2);
+					values = Arrays.copyOf(values, n * 2);
+				}
+				items[n] = i;
+				values[n++] = prefs.getValue(k);
+			}
+			r.rowStart[u + 1] = n;
+			sortRow(items, values, r.rowStart[u], n);
+		}
+		r.rowItems = Arrays.copyOf(items, n);
+		r.rowValues = Arrays.copyOf(values, n);
+
+		r.colStart = new int[numItems + 1];
+		for (int p = 0; p < n; p++) {
+			r.colStart[r.rowItems[p] + 1]++;
+		}
+		for (int i = 0; i < numItems; i++) {
+			r.colStart[i + 1] += r.colStart[i];
+		}
+		r.colUsers = new int[n];
+		r.colValues = new float[n];
+		int[] fill = Arrays.copyOf(r.colStart, numItems);
+		for (int u = 0; u < numUsers; u++) {
+			for (int p = r.rowStart[u]; p < r.rowStart[u + 1]; p++) {
+				int q = fill[r.rowItems[p]]++;
+				r.colUsers[q] = u;
+				r.colValues[q] = r.rowValues[p];
+			}
+		}
+		return r;
+	}
+
+	private static int[] ids(LongPrimitiveIterator it, int size) {
+		int[] rs = new int[size];
+		int n = 0;
+		while (it.hasNext() && n < size) {
+			rs[n++] = (int) it.nextLong();
+		}
+		rs = Arrays.copyOf(rs, n);
+		Arrays.sort(rs);
+		return rs;
+	}
+
+	/**
+	 * Insertion sort of one user's ratings by item ordinal; rows are short
+	 * and usually already sorted.
+	 */
+	private static void sortRow(int[] items, float[] values, int from, int to) {
+		for (int i = from + 1; i < to; i++) {
+			int item = items[i];
+			float value = values[i];
+			int j = i - 1;
+			while (j >= from && items[j] > item) {
+				items[j + 1] = items[j];
+				values[j + 1] = values[j];
+				j--;
+			}
+			items[j + 1] = item;
+			values[j + 1] = value;
+		}
+	}
+
+	/**
+	 * Loads the model of file if it was trained with the same parameters on
+	 * the current ratings, else trains and saves it.
+	 */
+	public static ALSRecommender loadOrTrain(File file, File ratings, DataModel dataModel, Parameters params)
+			throws TasteException {
+		String key = params.key(ratings);
+		Ratings r = readRatings(dataModel);
+		try {
+			ALSRecommender rs = load(file, key, dataModel, r);
+			if (rs != null) {
+				log.info("Loaded ALS factors from " + file);
+				return rs;
+			}
+		} catch (IOException e) {
+			log.error(e);
+		}
+		ALSRecommender rs = train(dataModel, r, params);
+		try {
+			rs.save(file, key);
+		} catch (IOException e) {
+			log.error(e);
+		}
+		return rs;
+	}
+
+	public static ALSRecommender train(DataModel dataModel, Parameters params) throws TasteException {
+		return train(dataModel, readRatings(dataModel), params);
+	}
+
+	private static ALSRecommender train(DataModel dataModel, Ratings r, Parameters params) {
+		long start = System.currentTimeMillis();
+		int rank = params.rank;
+		int numUsers = r.userIds.length;
+		int numItems = r.itemIds.length;
+		float[] users = new float[numUsers * rank];
+		float[] items = new float[numItems * rank];
+		// small positive start so that no item begins orthogonal to all users
+		Random random = new Random(params.seed);
+		float scale = (float) (1.0d / Math.sqrt(rank));
+		for (int k = 0; k < items.length; k++) {
+			items[k] = scale * random.nextFloat();
+		}
+		ForkJoinPool pool = WorkerPool.acquire(params.threads);
+		try {
+			for (int it = 0; it < params.iterations; it++) {
+				solveSide(pool, params, r.rowStart, r.rowItems, r.rowValues, items, numItems, users, numUsers);
+				solveSide(pool, params, r.colStart, r.colUsers, r.colValues, users, numUsers, items, numItems);
+				if (!params.implicit) {
+					log.info("ALS iteration " + (it + 1) + ": training RMSE " + rmse(r, users, items, rank));
+				}
+			}
+		} finally {
+			WorkerPool.release(pool);
+		}
+		log.info("Trained ALS (" + (params.implicit ? "implicit" : "explicit") + ", rank " + rank + ") on "
+				+ numUsers + " users, " + numItems + " items, " + r.rowItems.length + " ratings in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return new ALSRecommender(dataModel, rank, r.userIds, r.itemIds, users, items, r.rowStart, r.rowItems);
+	}
+
+	private static double rmse(Ratings r, float[] users, float[] items, int rank) {
+		double sum = 0.0d;
+		for (int u = 0; u < r.userIds.length; u++) {
+			for (int p = r.rowStart[u]; p < r.rowStart[u + 1]; p++) {
+				double e = r.rowValues[p] - VectorKernels.dot(users, u * rank, items, r.rowItems[p] * rank, rank);
+				sum += e * e;
+			}
+		}
+		return r.rowItems.length > 0 ? Math.sqrt(sum / r.rowItems.length) : 0.0d;
+	}
+
+	/**
+	 * Solves every row of out (numOut rows) against the fixed factors, the
+	 * ratings of row x being idx/val[start[x], start[x + 1]).
+	 */
+	private static void solveSide(ForkJoinPool pool, Parameters params, int[] start, int[] idx, float[] val,
+			float[] fixed, int numFixed, float[] out, int numOut) {
+		double[] gram = null;
+		if (params.implicit) {
+			// Y^T Y, shared by all rows
+			int k = params.rank;
+			gram = new double[k * k];
+			for (int j = 0; j < numFixed; j++) {
+				int o = j * k;
+				for (int a = 0; a < k; a++) {
+					double ya = fixed[o + a];
+					for (int b = a; b < k; b++) {
+						gram[a * k + b] += ya * fixed[o + b];
+					}
+				}
+			}
+			for (int a = 0; a < k; a++) {
+				for (int b = 0; b < a; b++) {
+					gram[a * k + b] = gram[b * k + a];
+				}
+			}
+		}
+		pool.invoke(new SolveBlock(params, start, idx, val, fixed, gram, out, 0, numOut,
+				Math.max(1, numOut / (pool.getParallelism() * 8))));
+	}
+
+	private static class SolveBlock extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Parameters params;
+		private final int[] start;
+		private final int[] idx;
+		private final float[] val;
+		private final float[] fixed;
+		private final double[] gram;
+		private final float[] out;
+		private final int from;
+		private final int to;
+		private final int blockSize;
+
+		SolveBlock(Parameters params, int[] start, int[] idx, float[] val, float[] fixed, double[] gram,
+				float[] out, int from, int to, int blockSize) {
+			this.params = params;
+			this.start = start;
+			this.idx = idx;
+			this.val = val;
+			this.fixed = fixed;
+			this.gram = gram;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > blockSize) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SolveBlock(params, start, idx, val, fixed, gram, out, from, mid, blockSize),
+						new SolveBlock(params, start, idx, val, fixed, gram, out, mid, to, blockSize));
+				return;
+			}
+			int k = params.rank;
+			double[] a = new double[k * k];
+			double[] b = new double[k];
+			for (int x = from; x < to; x++) {
+				if (params.implicit) {
+					buildImplicit(x, a, b, k);
+				} else if (!buildExplicit(x, a, b, k)) {
+					Arrays.fill(out, x * k, (x + 1) * k, 0.0f);
+					continue;
+				}
+				if (!cholesky(a, k)) {
+					Arrays.fill(out, x * k, (x + 1) * k, 0.0f);
+					continue;
+				}
+				solve(a, b, k);
+				for (int c = 0; c < k; c++) {
+					out[x * k + c] = (float) b[c];
+				}
+			}
+		}
+
+		/**
+		 * (Y_x^T Y_x + lambda n_x I) f = Y_x^T r_x; false if x has no ratings.
+		 */
+		private boolean buildExplicit(int x, double[] a, double[] b, int k) {
+			int n = start[x + 1] - start[x];
+			if (n == 0) {
+				return false;
+			}
+			Arrays.fill(a, 0.0d);
+			Arrays.fill(b, 0.0d);
+			for (int p = start[x]; p < start[x + 1]; p++) {
+				int o = idx[p] * k;
+				double r = val[p];
+				for (int i = 0; i < k; i++) {
+					double yi = fixed[o + i];
+					b[i] += r * yi;
+					for (int j = i; j < k; j++) {
+						a[i * k + j] += yi * fixed[o + j];
+					}
+				}
+			}
+			double reg = params.lambda * n;
+			for (int i = 0; i < k; i++) {
+				a[i * k + i] += reg;
+				for (int j = 0; j < i; j++) {
+					a[i * k + j] = a[j * k + i];
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * (Y^T Y + Y_x^T (C_x - I) Y_x + lambda I) f = Y_x^T C_x p_x over the
+		 * positives of x.
+		 */
+		private void buildImplicit(int x, double[] a, double[] b, int k) {
+			System.arraycopy(gram, 0, a, 0, k * k);
+			Arrays.fill(b, 0.0d);
+			for (int p = start[x]; p < start[x + 1]; p++) {
+				if (val[p] <= params.implicitThreshold) {
+					continue;
+				}
+				int o = idx[p] * k;
+				double c = 1.0d + params.alpha * val[p];
+				for (int i = 0; i < k; i++) {
+					double yi = fixed[o + i];
+					b[i] += c * yi;
+					for (int j = i; j < k; j++) {
+						a[i * k + j] += (c - 1.0d) * yi * fixed[o + j];
+					}
+				}
+			}
+			for (int i = 0; i < k; i++) {
+				a[i * k + i] += params.lambda;
+				for (int j = 0; j < i; j++) {
+					a[i * k + j] = a[j * k + i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * In-place Cholesky factorization A = L L^T of a symmetric positive
+	 * definite k x k matrix; L is left in the lower triangle.
+	 */
+	private static boolean cholesky(double[] a, int k) {
+		for (int j = 0; j < k; j++) {
+			double d = a[j * k + j];
+			for (int m = 0; m < j; m++) {
+				d -= a[j * k + m] * a[j * k + m];
+			}
+			if (d <= 0.0d) {
+				return false;
+			}
+			d = Math.sqrt(d);
+			a[j * k + j] = d;
+			for (int i = j + 1; i < k; i++) {
+				double s = a[i * k + j];
+				for (int m = 0; m < j; m++) {
+					s -= a[i * k + m] * a[j * k + m];
+				}
+				a[i * k + j] = s / d;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Solves L L^T x = b with the factor of cholesky(); x replaces b.
+	 */
+	private static void solve(double[] l, double[] b, int k) {
+		for (int i = 0; i < k; i++) {
+			double s = b[i];
+			for (int m = 0; m < i; m++) {
+				s -= l[i * k + m] * b[m];
+			}
+			b[i] = s / l[i * k + i];
+		}
+		for (int i = k - 1; i >= 0; i--) {
+			double s = b[i];
+			for (int m = i + 1; m < k; m++) {
+				s -= l[m * k + i] * b[m];
+			}
+			b[i] = s / l[i * k + i];
+		}
+	}
+
+	public void save(File file, String key) throws IOException {
+		AtomicFileWriter.write(file, new AtomicFileWriter.Content() {
+			@Override
+			public void write(DataOutputStream out) throws IOException {
+				out.writeInt(FORMAT);
+				out.writeUTF(key);
+				out.writeInt(rank);
+				out.writeInt(userIds.length);
+				out.writeInt(itemIds.length);
+				for (int id : userIds) {
+					out.writeInt(id);
+				}
+				for (int id : itemIds) {
+					out.writeInt(id);
+				}
+				for (float f : userFactors) {
+					out.writeFloat(f);
+				}
+				for (float f : itemFactors) {
+					out.writeFloat(f);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return null if there is no file, it was saved with another key or for
+	 *         other users and items than the ratings
+	 */
+	private static ALSRecommender load(File file, String key, DataModel dataModel, Ratings r) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != FORMAT || !key.equals(in.readUTF())) {
+				return null;
+			}
+			int rank = in.readInt();
+			int numUsers = in.readInt();
+			int numItems = in.readInt();
+			if (numUsers != r.userIds.length || numItems != r.itemIds.length) {
+				return null;
+			}
+			for (int u = 0; u < numUsers; u++) {
+				if (in.readInt() != r.userIds[u]) {
+					return null;
+				}
+			}
+			for (int i = 0; i < numItems; i++) {
+				if (in.readInt() != r.itemIds[i]) {
+					return null;
+				}
+			}
+			float[] users = new float[numUsers * rank];
+			float[] items = new float[numItems * rank];
+			for (int k = 0; k < users.length; k++) {
+				users[k] = in.readFloat();
+			}
+			for (int k = 0; k < items.length; k++) {
+				items[k] = in.readFloat();
+			}
+			return new ALSRecommender(dataModel, rank, r.userIds, r.itemIds, users, items, r.rowStart, r.rowItems);
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getRank() {
+		return rank;
+	}
+
+	private int user(long userID) throws NoSuchUserException {
+		int u = userID < Integer.MIN_VALUE || userID > Integer.MAX_VALUE ? -1
+				: Arrays.binarySearch(userIds, (int) userID);
+		if (u < 0) {
+			throw new NoSuchUserException(userID);
+		}
+		return u;
+	}
+
+	/**
+	 * Scores all items the user has not rated, in item order against the
+	 * contiguous item factors, and returns the howMany best.
+	 */
+	@Override
+	public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+		int u = user(userID);
+		TopKAccumulator top = new TopKAccumulator(howMany);
+		int rated = rowStart[u];
+		int ratedEnd = rowStart[u + 1];
+		int offset = u * rank;
+		for (int i = 0; i < itemIds.length; i++) {
+			if (rated < ratedEnd && rowItems[rated] == i) {
+				rated++;
+				continue;
+			}
+			float score = (float) VectorKernels.dot(userFactors, offset, itemFactors, i * rank, rank);
+			if (rescorer != null) {
+				if (rescorer.isFiltered(itemIds[i])) {
+					continue;
+				}
+				score = (float) rescorer.rescore(itemIds[i], score);
+			}
+			if (top.accepts(score)) {
+				top.offer(i, score);
+			}
+		}
+		int[] items = new int[howMany];
+		float[] scores = new float[howMany];
+		int n = top.sorted(items, scores);
+		List<RecommendedItem> rs = new ArrayList<RecommendedItem>(n);
+		for (int k = 0; k < n; k++) {
+			rs.add(new GenericRecommendedItem(itemIds[items[k]], scores[k]));
+		}
+		return rs;
+	}
+
+	/**
+	 * Recommends for the users userIDs[from, to) with the same results as
+	 * recommend(): a block of users goes through the items one tile at a
+	 * time, so the tile's factors stay in cache for all users of the block
+	 * instead of every user streaming all item factors from memory. Unknown
+	 * users are left null in results.
+	 */
+	public void recommend(int[] userIDs, int from, int to, int howMany, IDRescorer rescorer,
+			List<RecommendedItem>[] results) {
+		int itemTile = Math.max(1, ITEM_TILE_FLOATS / rank);
+		int[] users = new int[USER_BLOCK];
+		int[] rated = new int[USER_BLOCK];
+		int[] position = new int[USER_BLOCK];
+		TopKAccumulator[] tops = new TopKAccumulator[USER_BLOCK];
+		int[] items = new int[howMany];
+		float[] scores = new float[howMany];
+		int next = from;
+		while (next < to) {
+			int n = 0;
+			for (; next < to && n < USER_BLOCK; next++) {
+				int u = Arrays.binarySearch(userIds, userIDs[next]);
+				if (u >= 0) {
+					users[n] = u;
+					rated[n] = rowStart[u];
+					position[n] = next;
+					tops[n++] = new TopKAccumulator(howMany);
+				}
+			}
+			for (int i0 = 0; i0 < itemIds.length; i0 += itemTile) {
+				int i1 = Math.min(itemIds.length, i0 + itemTile);
+				for (int b = 0; b < n; b++) {
+					int u = users[b];
+					int ratedEnd = rowStart[u + 1];
+					int offset = u * rank;
+					TopKAccumulator top = tops[b];
+					for (int i = i0; i < i1; i++) {
+						if (rated[b] < ratedEnd && rowItems[rated[b]] == i) {
+							rated[b]++;
+							continue;
+						}
+						float score = (float) VectorKernels.dot(userFactors, offset, itemFactors, i * rank, rank);
+						if (rescorer != null) {
+							if (rescorer.isFiltered(itemIds[i])) {
+								continue;
+							}
+							score = (float) rescorer.rescore(itemIds[i], score);
+						}
+						if (top.accepts(score)) {
+							top.offer(i, score);
+						}
+					}
+				}
+			}
+			for (int b = 0; b < n; b++) {
+				int m = tops[b].sorted(items, scores);
+				List<RecommendedItem> rs = new ArrayList<RecommendedItem>(m);
+				for (int k = 0; k < m; k++) {
+					rs.add(new GenericRecommendedItem(itemIds[items[k]], scores[k]));
+				}
+				results[position[b]] = rs;
+			}
+		}
+	}
+
+	@Override
+	public float estimatePreference(long userID, long itemID) throws TasteException {
+		int u = user(userID);
+		int i = itemID < Integer.MIN_VALUE || itemID > Integer.MAX_VALUE ? -1
+				: Arrays.binarySearch(itemIds, (int) itemID);
+		if (i < 0) {
+			return Float.NaN;
+		}
+		return (float) VectorKernels.dot(userFactors, u * rank, itemFactors, i * rank, rank);
+	}
+
+	@Override
+	public void refresh(Collection<Refreshable> alreadyRefreshed) {
+		// retrained from the ratings file by the next task
+	}
+}
@@ -0,0 +1,268 @@
+package recsys.algorithms.collaborativeFiltering;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import utils.AtomicFileWriter;
+
+/**
+ * Converts a rating file in the FileDataModel format (user, item, value per
+ * line, separated by tabs or commas) into a binary file that MappedDataModel
+ * maps into memory instead of parsing it:
+ *
+ * <pre>
+ * header   int FORMAT, long source length, long source date,
+ *          int users, int items, int ratings, float min, float max
+ * users    int[users] ids (sorted), int[users + 1] row starts,
+ *          int[ratings] item ordinals, float[ratings] values
+ * items    int[items] ids (sorted), int[items + 1] column starts,
+ *          int[ratings] user ordinals, float[ratings] values
+ * </pre>
+ *
+ * i.e. the ratings once by user (CSR) and once by item (CSC), both sorted by
+ * ordinal. Ids must fit in an int. As in FileDataModel the last line of a
+ * (user, item) pair wins.
+ */
+public class BinaryRatingStore {
+	private static Logger log = Logger.getLogger(BinaryRatingStore.class.getName());
+
+	static final int FORMAT = 0x43465253; // "CFRS"
+	static final int HEADER_BYTES = 4 + 8 + 8 + 4 + 4 + 4 + 4 + 4;
+
+	private static final Pattern SEPARATOR = Pattern.compile("[\t,]");
+
+	private BinaryRatingStore() {
+	}
+
+	/**
+	 * The store of the current version of ratings,
+	 * &lt;name&gt;.&lt;length&gt;-&lt;date&gt;.bin next to it. A version is written
+	 * once and never replaced: Windows cannot delete or replace a file that
+	 * another task, or an earlier task of the same JVM, still has mapped.
+	 */
+	public static File storeFor(File ratings) {
+		String name = ratings.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		return new File(ratings.getAbsoluteFile().getParentFile(),
+				base + "." + ratings.length() + "-" + ratings.lastModified() + ".bin");
+	}
+
+	/**
+	 * Whether store was converted from the current version of ratings.
+	 */
+	public static boolean isCurrent(File store, File ratings) {
+		if (!store.exists()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(store));
+			try {
+				return in.readInt() == FORMAT && in.readLong() == ratings.length()
+						&& in.readLong() == ratings.lastModified();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the store of the current ratings, converting them first if no
+	 * task has done so yet. Tasks converting at the same time write separate
+	 * temporary files and the first to finish creates the store. Stores of
+	 * older versions are deleted where the platform allows it; one still
+	 * mapped by another task stays until a later call.
+	 */
+	public static File prepare(File ratings) throws IOException {
+		File store = storeFor(ratings);
+		if (!store.exists()) {
+			convert(ratings, store);
+		}
+		if (!isCurrent(store, ratings)) {
+			throw new IOException(store + " does not match " + ratings);
+		}
+		deleteOlderVersions(ratings, store);
+		return store;
+	}
+
+	private static void deleteOlderVersions(File ratings, File store) {
+		String name = ratings.getName();
+		int dot = name.lastIndexOf('.');
+		final String prefix = (dot > 0 ? name.substring(0, dot) : name) + ".";
+		File[] versions = store.getParentFile().listFiles();
+		if (versions == null) {
+			return;
+		}
+		for (File f : versions) {
+			String n = f.getName();
+			if (n.startsWith(prefix) && n.endsWith(".bin") && n.indexOf('-') > prefix.length()
+					&& !f.equals(store)) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes the store of ratings unless it exists.
+	 */
+	public static void convert(final File ratings, File store) throws IOException {
+		long start = System.currentTimeMillis();
+		int n = 0;
+		int[] users = new int[1024];
+		int[] items = new int[1024];
+		float[] values = new float[1024];
+		BufferedReader reader = new BufferedReader(new FileReader(ratings), 1 << 16);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.charAt(0) == '#') {
+					continue;
+				}
+				String[] tokens = SEPARATOR.split(line);
+				if (tokens.length < 3) {
+					continue;
+				}
+				if (n == users.length) {
+					users = Arrays.copyOf(users, n * 2);
+					items = Arrays.copyOf(items, n * 2);
+					values = Arrays.copyOf(values, n * 2);
+				}
+				users[n] = Integer.parseInt(tokens[0].trim());
+				items[n] = Integer.parseInt(tokens[1].trim());
+				values[n++] = Float.parseFloat(tokens[2].trim());
+			}
+		} finally {
+			reader.close();
+		}
+
+		int[] userIds = distinct(users, n);
+		int[] itemIds = distinct(items, n);
+
+		// CSR: counting sort by user keeps the line order within a row
+		int[] rowStart = new int[userIds.length + 1];
+		int[] userOrd = new int[n];
+		for (int k = 0; k < n; k++) {
+			userOrd[k] = Arrays.binarySearch(userIds, users[k]);
+			rowStart[userOrd[k] + 1]++;
+		}
+		for (int u = 0; u < userIds.length; u++) {
+			rowStart[u + 1] += rowStart[u];
+		}
+		// item ordinal in the high half, line in the low half
+		long[] packed = new long[n];
+		int[] fill = Arrays.copyOf(rowStart, userIds.length);
+		for (int k = 0; k < n; k++) {
+			packed[fill[userOrd[k]]++] = ((long) Arrays.binarySearch(itemIds, items[k]) << 32) | k;
+		}
+		int[] rowItems = new int[n];
+		float[] rowValues = new float[n];
+		int m = 0;
+		int[] dedupStart = new int[userIds.length + 1];
+		for (int u = 0; u < userIds.length; u++) {
+			Arrays.sort(packed, rowStart[u], rowStart[u + 1]);
+			for (int p = rowStart[u]; p < rowStart[u + 1]; p++) {
+				int item = (int) (packed[p] >>> 32);
+				float value = values[(int) packed[p]];
+				if (m > dedupStart[u] && rowItems[m - 1] == item) {
+					// a later line for the same pair replaces the earlier one
+					rowValues[m - 1] = value;
+				} else {
+					rowItems[m] = item;
+					rowValues[m++] = value;
+				}
+			}
+			dedupStart[u + 1] = m;
+		}
+		rowStart = dedupStart;
+
+		// CSC from CSR; walking users in order keeps every column sorted
+		int[] colStart = new int[itemIds.length + 1];
+		for (int p = 0; p < m; p++) {
+			colStart[rowItems[p] + 1]++;
+		}
+		for (int i = 0; i < itemIds.length; i++) {
+			colStart[i + 1] += colStart[i];
+		}
+		int[] colUsers = new int[m];
+		float[] colValues = new float[m];
+		fill = Arrays.copyOf(colStart, itemIds.length);
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int u = 0; u < userIds.length; u++) {
+			for (int p = rowStart[u]; p < rowStart[u + 1]; p++) {
+				int q = fill[rowItems[p]]++;
+				colUsers[q] = u;
+				colValues[q] = rowValues[p];
+				min = Math.min(min, rowValues[p]);
+				max = Math.max(max, rowValues[p]);
+			}
+		}
+
+		final int numRatings = m;
+		final int[] userStart = rowStart;
+		final float minValue = min;
+		final float maxValue = max;
+		boolean created = AtomicFileWriter.create(store, new AtomicFileWriter.Content() {
+			@Override
+			public void write(DataOutputStream out) throws IOException {
+				out.writeInt(FORMAT);
+				out.writeLong(ratings.length());
+				out.writeLong(ratings.lastModified());
+				out.writeInt(userIds.length);
+				out.writeInt(itemIds.length);
+				out.writeInt(numRatings);
+				out.writeFloat(minValue);
+				out.writeFloat(maxValue);
+				writeInts(out, userIds, userIds.length);
+				writeInts(out, userStart, userStart.length);
+				writeInts(out, rowItems, numRatings);
+				writeFloats(out, rowValues, numRatings);
+				writeInts(out, itemIds, itemIds.length);
+				writeInts(out, colStart, colStart.length);
+				writeInts(out, colUsers, numRatings);
+				writeFloats(out, colValues, numRatings);
+			}
+		});
+		log.info("Converted " + ratings + " to " + store + ": " + userIds.length + " users, " + itemIds.length
+				+ " items, " + m + " ratings in " + (System.currentTimeMillis() - start) + " ms"
+				+ (created ? "" : " (another task created it first)"));
+	}
+
+	/**
+	 * Sorted distinct values of the first n entries.
+	 */
+	private static int[] distinct(int[] values, int n) {
+		int[] sorted = Arrays.copyOf(values, n);
+		Arrays.sort(sorted);
+		int m = 0;
+		for (int k = 0; k < n; k++) {
+			if (m == 0 || sorted[m - 1] != sorted[k]) {
+				sorted[m++] = sorted[k];
+			}
+		}
+		return Arrays.copyOf(sorted, m);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+		for (int k = 0; k < length; k++) {
+			out.writeInt(values[k]);
+		}
+	}
+
+	private static void writeFloats(DataOutputStream out, float[] values, int length) throws IOException {
+		for (int k = 0; k < length; k++) {
+			out.writeFloat(values[k]);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package recsys.algorithms.collaborativeFiltering;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/**
+ * Hit rate of one of the Mahout caches, which do not count hits themselves.
+ * The cache is wrapped twice: countRequests() in front of it sees every
+ * lookup and countMisses() behind it only the ones the cache had to compute,
+ * e.g.
+ *
+ * <pre>
+ * stats.countRequests(new CachingUserSimilarity(stats.countMisses(similarity), dataModel))
+ * </pre>
+ */
+public class CacheStatistics {
+
+	private final String name;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public CacheStatistics(String name) {
+		this.name = name;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long r = requests.get();
+		return r > 0 ? 1.0d - (double) Math.min(misses.get(), r) / r : 0.0d;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + getRequests() + " lookups, " + getMisses() + " computed, hit rate " + getHitRate();
+	}
+
+	public UserSimilarity countRequests(UserSimilarity similarity) {
+		return new CountingUserSimilarity(similarity, requests);
+	}
+
+	public UserSimilarity countMisses(UserSimilarity similarity) {
+		return new CountingUserSimilarity(similarity, misses);
+	}
+
+	public ItemSimilarity countRequests(ItemSimilarity similarity) {
+		return new CountingItemSimilarity(similarity, requests);
+	}
+
+	public ItemSimilarity countMisses(ItemSimilarity similarity) {
+		return new CountingItemSimilarity(similarity, misses);
+	}
+
+	public UserNeighborhood countRequests(UserNeighborhood neighborhood) {
+		return new CountingUserNeighborhood(neighborhood, requests);
+	}
+
+	public UserNeighborhood countMisses(UserNeighborhood neighborhood) {
+		return new CountingUserNeighborhood(neighborhood, misses);
+	}
+
+	private static class CountingUserSimilarity implements UserSimilarity {
+		private final UserSimilarity delegate;
+		private final AtomicLong counter;
+
+		CountingUserSimilarity(UserSimilarity delegate, AtomicLong counter) {
+			this.delegate = delegate;
+			this.counter = counter;
+		}
+
+		@Override
+		public double userSimilarity(long userID1, long userID2) throws TasteException {
+			counter.incrementAndGet();
+			return delegate.userSimilarity(userID1, userID2);
+		}
+
+		@Override
+		public void setPreferenceInferrer(PreferenceInferrer inferrer) {
+			delegate.setPreferenceInferrer(inferrer);
+		}
+
+		@Override
+		public void refresh(Collection<Refreshable> alreadyRefreshed) {
+			delegate.refresh(alreadyRefreshed);
+		}
+	}
+
+	private static class CountingItemSimilarity implements ItemSimilarity {
+		private final ItemSimilarity delegate;
+		private final AtomicLong counter;
+
+		CountingItemSimilarity(ItemSimilarity delegate, AtomicLong counter) {
+			this.delegate = delegate;
+			this.counter = counter;
+		}
+
+		@Override
+		public double itemSimilarity(long itemID1, long itemID2) throws TasteException {
+			counter.incrementAndGet();
+			return delegate.itemSimilarity(itemID1, itemID2);
+		}
+
+		@Override
+		public double[] itemSimilarities(long itemID1, long[] itemID2s) throws TasteException {
+			counter.addAndGet(itemID2s.length);
+			return delegate.itemSimilarities(itemID1, itemID2s);
+		}
+
+		@Override
+		public long[] allSimilarItemIDs(long itemID) throws TasteException {
+			return delegate.allSimilarItemIDs(itemID);
+		}
+
+		@Override
+		public void refresh(Collection<Refreshable> alreadyRefreshed) {
+			delegate.refresh(alreadyRefreshed);
+		}
+	}
+
+	private static class CountingUserNeighborhood implements UserNeighborhood {
+		private final UserNeighborhood delegate;
+		private final AtomicLong counter;
+
+		CountingUserNeighborhood(UserNeighborhood delegate, AtomicLong counter) {
+			this.delegate = delegate;
+			this.counter = counter;
+		}
+
+		@Override
+		public long[] getUserNeighborhood(long userID) throws TasteException {
+			counter.incrementAndGet();
+			return delegate.getUserNeighborhood(userID);
+		}
+
+		@Override
+		public void refresh(Collection<Refreshable> alreadyRefreshed) {
+			delegate.refresh(alreadyRefreshed);
+		}
+	}
+}
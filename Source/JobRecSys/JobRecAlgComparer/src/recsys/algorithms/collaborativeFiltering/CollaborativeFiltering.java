@@ -5,18 +5,25 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.common.Weighting;
 import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
+import org.apache.mahout.cf.taste.impl.neighborhood.CachingUserNeighborhood;
 import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
 import org.apache.mahout.cf.taste.impl.neighborhood.ThresholdUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.recommender.AllSimilarItemsCandidateItemsStrategy;
 import org.apache.mahout.cf.taste.impl.recommender.CachingRecommender;
 import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
 import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.CachingItemSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.CachingUserSimilarity;
 import org.apache.mahout.cf.taste.impl.similarity.EuclideanDistanceSimilarity;
 import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
 import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
@@ -33,6 +40,8 @@ import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import recsys.algorithms.RecommendationAlgorithm;
 import recsys.datapreparer.CollaborativeFilteringDataPreparer;
 
+import utils.WorkerPool;
+
 public class CollaborativeFiltering extends RecommendationAlgorithm {
 
 	DataModel dataModel;
@@ -42,6 +51,23 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 	UserNeighborhood userNeighborhood;
 	List<Integer> listUserIds;
 	boolean isEstimate = false;
+	List<CacheStatistics> cacheStatistics = new ArrayList<>();
+
+	/*
+	 * one rescorer for all calls: CachingRecommender drops its cached lists
+	 * whenever it is given another rescorer
+	 */
+	private static final IDRescorer NO_RESCORING = new IDRescorer() {
+		@Override
+		public double rescore(long userid, double originalSocre) {
+			return originalSocre;
+		}
+
+		@Override
+		public boolean isFiltered(long itemId) {
+			return false;
+		}
+	};
 
 	public CollaborativeFiltering(String inputDir, String outputDir, String taskId, long startTime) {
 
@@ -79,7 +105,20 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 
 		/* init data model */
 		try {
-			dataModel = new FileDataModel(new File(inputDirectory + "Score.txt"));
+			long start = System.currentTimeMillis();
+			File ratings = new File(inputDirectory + "Score.txt");
+			if ("binary".equals(config.getProperty("cf.datamodel"))) {
+				/* parsed once per version of the ratings, then mapped by every task */
+				try {
+					dataModel = new MappedDataModel(BinaryRatingStore.prepare(ratings));
+				} catch (IOException e) {
+					log.error("Cannot use the binary rating store, parsing " + ratings, e);
+				}
+			}
+			if (dataModel == null) {
+				dataModel = new FileDataModel(ratings);
+			}
+			log.info("Loaded " + dataModel + " in " + (System.currentTimeMillis() - start) + " ms");
 		} catch (IOException e) {
 			e.printStackTrace();
 			log.error(e);
@@ -97,15 +136,40 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 					param = config.getProperty("cf.neighborhood.param.threshold");
 				}
 				initUserNeighborhood(config.getProperty("cf.neighborhood.type"), param);
+
+				/* one recommender for all users */
+				recommender = new CachingRecommender(
+						new GenericUserBasedRecommender(dataModel, userNeighborhood, userSimilarity));
 			} catch (TasteException e) {
 				e.printStackTrace();
 				log.error(e);
 				updateDB("update task set Status = 'Error' where TaskId = " + taskId);
 			}
+		} else if (config.getProperty("cf.type").equals("ALS")) {
+			/* factorize once per dataset and parameters, reuse the stored factors after */
+			try {
+				recommender = ALSRecommender.loadOrTrain(new File(inputDirectory + "cfals.bin"),
+						new File(inputDirectory + "Score.txt"), dataModel, getALSParameters());
+			} catch (TasteException e) {
+				log.error(e);
+				e.printStackTrace();
+				updateDB("update task set Status = 'Error' where TaskId = " + taskId);
+			}
 		} else {
 			/* init item similarity measure */
 			try {
 				initItemSimilaritymeasure(config.getProperty("cf.similarity"));
+
+				/* one recommender for all users */
+				if (itemSimilarity instanceof PrecomputedItemSimilarity) {
+					/* recommend from the stored neighbours of the rated items only */
+					AllSimilarItemsCandidateItemsStrategy candidates = new AllSimilarItemsCandidateItemsStrategy(
+							itemSimilarity);
+					recommender = new CachingRecommender(
+							new GenericItemBasedRecommender(dataModel, itemSimilarity, candidates, candidates));
+				} else {
+					recommender = new CachingRecommender(new GenericItemBasedRecommender(dataModel, itemSimilarity));
+				}
 			} catch (TasteException e) {
 				log.error(e);
 				e.printStackTrace();
@@ -114,33 +178,34 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 		}
 	}
 
+	/**
+	 * Receives the recommendations of a block of users as soon as the block
+	 * is done, on the worker thread that computed it.
+	 */
+	interface BatchListener {
+		void finished(int[] userIds, List<RecommendedItem>[] results, int from, int to) throws IOException;
+	}
+
 	public void recommend() {
-		int startIndex = 0;
-		if (isEstimate) {
-			startIndex = 1;
+		BufferedWriter wr = null;
+		try {
+			wr = openOutput();
+		} catch (IOException e) {
+			log.error(e);
+			e.printStackTrace();
 		}
-		HashMap<String, List<RecommendedItem>> recommendedList = new HashMap<>();
-		int currentUser;
-		switch (config.getProperty("cf.type")) {
-		case "UserBased":
-			for (int i = startIndex; i < listUserIds.size(); i++) {
-				currentUser = listUserIds.get(i);
-				recommendedList.put(String.valueOf(currentUser), UserBased(currentUser));
-			}
-			break;
-		case "ItemBased":
-			for (int i = startIndex; i < listUserIds.size(); i++) {
-				currentUser = listUserIds.get(i);
-				recommendedList.put(String.valueOf(currentUser), ItemBased(currentUser));
+		final BufferedWriter output = wr;
+		int[] userIds = new int[listUserIds.size()];
+		List<RecommendedItem>[] results = recommendAll(userIds, output == null ? null : new BatchListener() {
+			@Override
+			public void finished(int[] userIds, List<RecommendedItem>[] results, int from, int to)
+					throws IOException {
+				writeUsers(output, userIds, results, from, to);
 			}
-			break;
-		default:
-			log.error("Incorrect configuration file - cf.type");
-			updateDB("update task set ExecutionTime = '" + ((System.currentTimeMillis() - this.startTime) / 1000)
-					+ "', Status = 'Error' where TaskId = " + taskId);
-			break;
+		});
+		if (output != null) {
+			writeOutput(output, userIds, results);
 		}
-		writeOutput(recommendedList);
 
 		if (!isRunningEvaluation) {
 			this.setupDBConnection("jobrectaskmanagement");
@@ -150,32 +215,141 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 	}
 
 	public HashMap<String, List<RecommendedItem>> getRecommendedList() {
+		int[] userIds = new int[listUserIds.size()];
+		List<RecommendedItem>[] results = recommendAll(userIds, null);
+		HashMap<String, List<RecommendedItem>> recommendedList = new HashMap<>();
+		for (int i = 0; i < userIds.length; i++) {
+			if (results[i] != null) {
+				recommendedList.put(String.valueOf(userIds[i]), results[i]);
+			}
+		}
+		return recommendedList;
+	}
+
+	/**
+	 * Number of threads of the parallel CF stages, from cf.threads; 1 runs
+	 * them on the calling thread. 0, the default, runs them on the shared
+	 * WorkerPool, so that CF does not compete with a CB model built at the
+	 * same time for more threads than there are cores.
+	 */
+	private int getThreads() {
+		String threads = config.getProperty("cf.threads");
+		if (threads == null || threads.trim().isEmpty()) {
+			return 0;
+		}
+		return Math.max(1, Integer.parseInt(threads.trim()));
+	}
+
+	/**
+	 * Recommends for every user of listUserIds. The recommender is read-only
+	 * once built, so the users are split into blocks over a fork/join pool
+	 * (see getThreads()); each block writes only its own slots of the
+	 * preallocated result array, indexed like listUserIds, and is handed to
+	 * the listener (if any) when it is done. ALS scores each block in one
+	 * batch against tiles of the item factors.
+	 * 
+	 * @param userIds
+	 *            filled with listUserIds
+	 * @return recommendations by position, null for users that were skipped
+	 *         or failed
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<RecommendedItem>[] recommendAll(int[] userIds, BatchListener listener) {
 		int startIndex = 0;
 		if (isEstimate) {
 			startIndex = 1;
 		}
-		HashMap<String, List<RecommendedItem>> recommendedList = new HashMap<>();
-		int currentUser;
-		switch (config.getProperty("cf.type")) {
-		case "UserBased":
-			for (int i = startIndex; i < listUserIds.size(); i++) {
-				currentUser = listUserIds.get(i);
-				recommendedList.put(String.valueOf(currentUser), UserBased(currentUser));
-			}
-			break;
-		case "ItemBased":
-			for (int i = startIndex; i < listUserIds.size(); i++) {
-				currentUser = listUserIds.get(i);
-				recommendedList.put(String.valueOf(currentUser), ItemBased(currentUser));
-			}
-			break;
-		default:
+		for (int i = 0; i < userIds.length; i++) {
+			userIds[i] = listUserIds.get(i);
+		}
+		List<RecommendedItem>[] results = new List[userIds.length];
+		String type = config.getProperty("cf.type");
+		if (!"UserBased".equals(type) && !"ItemBased".equals(type) && !"ALS".equals(type)) {
 			log.error("Incorrect configuration file - cf.type");
 			updateDB("update task set ExecutionTime = '" + ((System.currentTimeMillis() - this.startTime) / 1000)
 					+ "', Status = 'Error' where TaskId = " + taskId);
-			break;
+			return results;
+		}
+
+		long start = System.currentTimeMillis();
+		int threads = getThreads();
+		if (threads == 1) {
+			new UserBatch(userIds, results, listener, startIndex, userIds.length, userIds.length).recommendBlock();
+		} else {
+			ForkJoinPool pool = WorkerPool.acquire(threads);
+			threads = pool.getParallelism();
+			try {
+				pool.invoke(new UserBatch(userIds, results, listener, startIndex, userIds.length,
+						Math.max(1, (userIds.length - startIndex) / (threads * 8))));
+			} finally {
+				WorkerPool.release(pool);
+			}
+		}
+		long time = System.currentTimeMillis() - start;
+		log.info("CF recommended " + (userIds.length - startIndex) + " users with " + threads + " threads in " + time
+				+ " ms");
+		reportCacheStatistics();
+		return results;
+	}
+
+	private class UserBatch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int[] userIds;
+		private final List<RecommendedItem>[] results;
+		private final BatchListener listener;
+		private final int from;
+		private final int to;
+		private final int blockSize;
+
+		UserBatch(int[] userIds, List<RecommendedItem>[] results, BatchListener listener, int from, int to,
+				int blockSize) {
+			this.userIds = userIds;
+			this.results = results;
+			this.listener = listener;
+			this.from = from;
+			this.to = to;
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > blockSize) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new UserBatch(userIds, results, listener, from, mid, blockSize),
+						new UserBatch(userIds, results, listener, mid, to, blockSize));
+			} else {
+				recommendBlock();
+			}
+		}
+
+		void recommendBlock() {
+			if (recommender instanceof ALSRecommender) {
+				((ALSRecommender) recommender).recommend(userIds, from, to, topn, NO_RESCORING, results);
+			}
+			for (int i = from; i < to; i++) {
+				// unknown users of ALS fail here with the usual error
+				if (results[i] == null) {
+					results[i] = recommendWithSharedModel(userIds[i]);
+				}
+			}
+			if (listener != null) {
+				try {
+					listener.finished(userIds, results, from, to);
+				} catch (IOException e) {
+					log.error(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Logs the hit rate of the similarity and neighborhood caches, which are
+	 * shared by all users of the run.
+	 */
+	public void reportCacheStatistics() {
+		for (CacheStatistics stats : cacheStatistics) {
+			log.info("CF cache " + stats);
 		}
-		return recommendedList;
 	}
 
 	/**
@@ -201,6 +375,12 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 			rEnd = System.currentTimeMillis();
 			recTime = rEnd - rStart;
 			break;
+		case "ALS":
+			rStart = System.currentTimeMillis();
+			recommendWithSharedModel(listUserIds.get(0));
+			rEnd = System.currentTimeMillis();
+			recTime = rEnd - rStart;
+			break;
 		}
 		long totalTime = recTime * listUserIds.size() + initModelTime;
 		// updateDB("update task set Status = '"+ totalTime + " remaining' where
@@ -209,53 +389,45 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 		return totalTime;
 	}
 
+	/**
+	 * ALS settings from cf.als.*; cf.als.implicit=true fits the ratings above
+	 * cf.als.implicit.threshold as implicit feedback.
+	 */
+	private ALSRecommender.Parameters getALSParameters() {
+		ALSRecommender.Parameters params = new ALSRecommender.Parameters();
+		params.rank = Integer.parseInt(config.getProperty("cf.als.rank", "" + ALSRecommender.DEFAULT_RANK));
+		params.iterations = Integer
+				.parseInt(config.getProperty("cf.als.iterations", "" + ALSRecommender.DEFAULT_ITERATIONS));
+		params.lambda = Double.parseDouble(config.getProperty("cf.als.lambda", "" + ALSRecommender.DEFAULT_LAMBDA));
+		params.implicit = Boolean.parseBoolean(config.getProperty("cf.als.implicit"));
+		params.alpha = Double.parseDouble(config.getProperty("cf.als.alpha", "" + ALSRecommender.DEFAULT_ALPHA));
+		params.implicitThreshold = Float.parseFloat(
+				config.getProperty("cf.als.implicit.threshold", "" + ALSRecommender.DEFAULT_IMPLICIT_THRESHOLD));
+		params.threads = getThreads();
+		return params;
+	}
+
 	/**
 	 * Recommendation using user-Based method
 	 */
 	public List<RecommendedItem> UserBased(int userIDToRecommend) {
-		// initialize recommender
-		recommender = new GenericUserBasedRecommender(dataModel, userNeighborhood, userSimilarity);
-
-		try {
-			CachingRecommender cachingRecommender = new CachingRecommender(recommender);
-			return cachingRecommender.recommend(userIDToRecommend, topn, new IDRescorer() {
-				@Override
-				public double rescore(long userid, double originalSocre) {
-					return originalSocre;
-				}
-
-				@Override
-				public boolean isFiltered(long itemId) {
-					return false;
-				}
-			});
-		} catch (TasteException e) {
-			e.printStackTrace();
-			log.error(e);
-			updateDB("update task set Status = 'Error' where TaskId = " + taskId);
-		}
-		return null;
+		return recommendWithSharedModel(userIDToRecommend);
 	}
 
 	/**
 	 * Recommendation using item-Based method
 	 */
 	public List<RecommendedItem> ItemBased(int userIDToRecommend) {
-		// initialize recommender
-		recommender = new GenericItemBasedRecommender(dataModel, itemSimilarity);
-		try {
-			CachingRecommender cachingRecommender = new CachingRecommender(recommender);
-			return cachingRecommender.recommend(userIDToRecommend, topn, new IDRescorer() {
-				@Override
-				public double rescore(long userid, double originalSocre) {
-					return originalSocre;
-				}
+		return recommendWithSharedModel(userIDToRecommend);
+	}
 
-				@Override
-				public boolean isFiltered(long itemId) {
-					return false;
-				}
-			});
+	/**
+	 * The recommender built in initModel, with its similarity and neighborhood
+	 * caches, serves every user.
+	 */
+	private List<RecommendedItem> recommendWithSharedModel(int userIDToRecommend) {
+		try {
+			return recommender.recommend(userIDToRecommend, topn, NO_RESCORING);
 		} catch (TasteException e) {
 			e.printStackTrace();
 			log.error(e);
@@ -287,6 +459,11 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 		default:
 			break;
 		}
+		if (userSimilarity != null) {
+			CacheStatistics stats = new CacheStatistics("user similarity");
+			userSimilarity = stats.countRequests(new CachingUserSimilarity(stats.countMisses(userSimilarity), dataModel));
+			cacheStatistics.add(stats);
+		}
 	}
 
 	private void initItemSimilaritymeasure(String similarity) throws TasteException {
@@ -307,6 +484,18 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 		default:
 			break;
 		}
+		if (itemSimilarity != null && Boolean.parseBoolean(config.getProperty("cf.itemsimilarity.precomputed"))) {
+			itemSimilarity = PrecomputedItemSimilarity.loadOrCompute(
+					new File(inputDirectory + "cfItemSimilarity.bin"), new File(inputDirectory + "Score.txt"),
+					similarity, dataModel, itemSimilarity,
+					Integer.parseInt(config.getProperty("cf.itemsimilarity.topk",
+							"" + PrecomputedItemSimilarity.DEFAULT_TOP_K)),
+					Double.parseDouble(config.getProperty("cf.itemsimilarity.min", "0")), getThreads());
+		} else if (itemSimilarity != null) {
+			CacheStatistics stats = new CacheStatistics("item similarity");
+			itemSimilarity = stats.countRequests(new CachingItemSimilarity(stats.countMisses(itemSimilarity), dataModel));
+			cacheStatistics.add(stats);
+		}
 	}
 
 	private void initUserNeighborhood(String neighborhood, String neighborhoodParam) throws TasteException {
@@ -321,50 +510,84 @@ public class CollaborativeFiltering extends RecommendationAlgorithm {
 		default:
 			break;
 		}
+		if (userNeighborhood != null) {
+			CacheStatistics stats = new CacheStatistics("user neighborhood");
+			userNeighborhood = stats
+					.countRequests(new CachingUserNeighborhood(stats.countMisses(userNeighborhood), dataModel));
+			cacheStatistics.add(stats);
+		}
 	}
 
-	private void writeOutput(HashMap<String, List<RecommendedItem>> recommendedList) {
-		FileWriter fwr;
-		try {
-			File out = new File(outputDirectory);
-			if (!out.exists()) {
-				out.mkdirs();
-			}
-			File fileOut = new File(out.getAbsolutePath() + File.separator + "Score.txt");
-			if (!fileOut.exists()) {
-				fileOut.createNewFile();
-			}
-			PrintWriter pw = new PrintWriter(fileOut);
-			pw.print("");
-			pw.close();
-			fwr = new FileWriter(fileOut, true);
-			fwr.write("");
-			BufferedWriter wr = new BufferedWriter(fwr);
-			System.out.println("start writing data");
-			System.out.println("Users: " + listUserIds.size());
-			System.out.println("Recommend Users: " + recommendedList.keySet().size());
-
-			for (String userId : recommendedList.keySet()) {
-				for (RecommendedItem rec : recommendedList.get(userId)) {
-					wr.write(userId + "\t" + rec.getItemID() + "\t" + rec.getValue());
-					System.out.println("Result: " + userId + "\t" + rec.getItemID() + "\t" + rec.getValue());
+	/**
+	 * Empties Score.txt of the output directory and opens it for the users
+	 * streamed by recommendAll.
+	 */
+	private BufferedWriter openOutput() throws IOException {
+		File out = new File(outputDirectory);
+		if (!out.exists()) {
+			out.mkdirs();
+		}
+		File fileOut = new File(out.getAbsolutePath() + File.separator + "Score.txt");
+		if (!fileOut.exists()) {
+			fileOut.createNewFile();
+		}
+		PrintWriter pw = new PrintWriter(fileOut);
+		pw.print("");
+		pw.close();
+		FileWriter fwr = new FileWriter(fileOut, true);
+		fwr.write("");
+		System.out.println("start writing data");
+		System.out.println("Users: " + listUserIds.size());
+		return new BufferedWriter(fwr);
+	}
+
+	private void writeUsers(BufferedWriter wr, int[] userIds, List<RecommendedItem>[] results, int from, int to)
+			throws IOException {
+		synchronized (wr) {
+			for (int i = from; i < to; i++) {
+				if (results[i] == null) {
+					continue;
+				}
+				for (RecommendedItem rec : results[i]) {
+					wr.write(userIds[i] + "\t" + rec.getItemID() + "\t" + rec.getValue());
 					wr.newLine();
 				}
 			}
+		}
+	}
+
+	/**
+	 * Closes the streamed Score.txt and inserts the ranked lists into the
+	 * database when enabled.
+	 */
+	private void writeOutput(BufferedWriter wr, int[] userIds, List<RecommendedItem>[] results) {
+		try {
+			int recommended = 0;
+			for (List<RecommendedItem> result : results) {
+				if (result != null) {
+					recommended++;
+				}
+			}
+			System.out.println("Recommend Users: " + recommended);
 
 			if (this.isWriteToDB()) {
 				this.setupDBConnection("recsys");
-				String sql = "insert into rankedlist(Algorithm, AccountId, JobId, Prediction) values ";
-				for (String userId : recommendedList.keySet()) {
-					for (RecommendedItem rec : recommendedList.get(userId)) {
-						wr.write(userId + "\t" + rec.getItemID() + "\t" + rec.getValue());
-						sql += "('cf'," + userId + "," + rec.getItemID() + "," + rec.getValue() + "),";
-						System.out.println("Result: " + userId + "\t" + rec.getItemID() + "\t" + rec.getValue());
-						wr.newLine();
+				StringBuilder sql = new StringBuilder(
+						"insert into rankedlist(Algorithm, AccountId, JobId, Prediction) values ");
+				boolean hasRows = false;
+				for (int i = 0; i < userIds.length; i++) {
+					if (results[i] == null) {
+						continue;
 					}
+					for (RecommendedItem rec : results[i]) {
+						sql.append("('cf'," + userIds[i] + "," + rec.getItemID() + "," + rec.getValue() + "),");
+						hasRows = true;
+					}
+				}
+				if (hasRows) {
+					System.out.println(sql.substring(0, sql.length() - 1));
+					this.updateDB(sql.substring(0, sql.length() - 1));
 				}
-				System.out.println(sql.substring(0, sql.length() - 1));
-				this.updateDB(sql.substring(0, sql.length() - 1));
 			}
 			wr.close();
 		} catch (IOException e) {
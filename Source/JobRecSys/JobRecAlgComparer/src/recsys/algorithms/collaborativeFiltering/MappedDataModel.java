@@ -0,0 +1,327 @@
+package recsys.algorithms.collaborativeFiltering;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Read-only DataModel over a file written by BinaryRatingStore. The file is
+ * mapped, not read: opening it costs the header only, pages are loaded by
+ * the operating system on first use, and tasks on the same dataset share
+ * them through the page cache. Lookups are binary searches over the sorted
+ * ids; preference arrays are built on request. Only absolute reads are used
+ * on the buffers, so the model can be shared by threads. Files larger than
+ * 2 GB are not supported.
+ */
+public class MappedDataModel implements DataModel {
+	private static final long serialVersionUID = 1L;
+
+	private final int numUsers;
+	private final int numItems;
+	private final int numRatings;
+	private final float minPreference;
+	private final float maxPreference;
+	private final IntBuffer userIds;
+	private final IntBuffer rowStart;
+	private final IntBuffer rowItems;
+	private final FloatBuffer rowValues;
+	private final IntBuffer itemIds;
+	private final IntBuffer colStart;
+	private final IntBuffer colUsers;
+	private final FloatBuffer colValues;
+
+	public MappedDataModel(File store) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(store, "r");
+		MappedByteBuffer map;
+		try {
+			map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			// the mapping stays valid after the channel is closed
+			file.close();
+		}
+		if (map.getInt(0) != BinaryRatingStore.FORMAT) {
+			throw new IOException(store + " is not a rating store");
+		}
+		int pos = 4 + 8 + 8;
+		numUsers = map.getInt(pos);
+		numItems = map.getInt(pos + 4);
+		numRatings = map.getInt(pos + 8);
+		minPreference = map.getFloat(pos + 12);
+		maxPreference = map.getFloat(pos + 16);
+		pos = BinaryRatingStore.HEADER_BYTES;
+		userIds = slice(map, pos, numUsers).asIntBuffer();
+		pos += 4 * numUsers;
+		rowStart = slice(map, pos, numUsers + 1).asIntBuffer();
+		pos += 4 * (numUsers + 1);
+		rowItems = slice(map, pos, numRatings).asIntBuffer();
+		pos += 4 * numRatings;
+		rowValues = slice(map, pos, numRatings).asFloatBuffer();
+		pos += 4 * numRatings;
+		itemIds = slice(map, pos, numItems).asIntBuffer();
+		pos += 4 * numItems;
+		colStart = slice(map, pos, numItems + 1).asIntBuffer();
+		pos += 4 * (numItems + 1);
+		colUsers = slice(map, pos, numRatings).asIntBuffer();
+		pos += 4 * numRatings;
+		colValues = slice(map, pos, numRatings).asFloatBuffer();
+	}
+
+	/**
+	 * View of count 4-byte values starting at byte offset.
+	 */
+	private static ByteBuffer slice(MappedByteBuffer map, int offset, int count) {
+		ByteBuffer view = map.duplicate();
+		view.position(offset);
+		view.limit(offset + 4 * count);
+		return view.slice();
+	}
+
+	/**
+	 * Position of id in the sorted ids, -1 if it is not there.
+	 */
+	private static int find(IntBuffer ids, int from, int to, long id) {
+		if (id < Integer.MIN_VALUE || id > Integer.MAX_VALUE) {
+			return -1;
+		}
+		int low = from;
+		int high = to - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int value = ids.get(mid);
+			if (value < id) {
+				low = mid + 1;
+			} else if (value > id) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private int user(long userID) throws NoSuchUserException {
+		int u = find(userIds, 0, numUsers, userID);
+		if (u < 0) {
+			throw new NoSuchUserException(userID);
+		}
+		return u;
+	}
+
+	private int item(long itemID) throws NoSuchItemException {
+		int i = find(itemIds, 0, numItems, itemID);
+		if (i < 0) {
+			throw new NoSuchItemException(itemID);
+		}
+		return i;
+	}
+
+	@Override
+	public LongPrimitiveIterator getUserIDs() {
+		return new IdIterator(userIds, numUsers);
+	}
+
+	@Override
+	public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+		int u = user(userID);
+		int from = rowStart.get(u);
+		int to = rowStart.get(u + 1);
+		PreferenceArray rs = new GenericUserPreferenceArray(to - from);
+		rs.setUserID(0, userID);
+		for (int p = from; p < to; p++) {
+			rs.setItemID(p - from, itemIds.get(rowItems.get(p)));
+			rs.setValue(p - from, rowValues.get(p));
+		}
+		return rs;
+	}
+
+	@Override
+	public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
+		int u = user(userID);
+		int from = rowStart.get(u);
+		int to = rowStart.get(u + 1);
+		FastIDSet rs = new FastIDSet(to - from);
+		for (int p = from; p < to; p++) {
+			rs.add(itemIds.get(rowItems.get(p)));
+		}
+		return rs;
+	}
+
+	@Override
+	public LongPrimitiveIterator getItemIDs() {
+		return new IdIterator(itemIds, numItems);
+	}
+
+	@Override
+	public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+		int i = item(itemID);
+		int from = colStart.get(i);
+		int to = colStart.get(i + 1);
+		PreferenceArray rs = new GenericItemPreferenceArray(to - from);
+		rs.setItemID(0, itemID);
+		for (int p = from; p < to; p++) {
+			rs.setUserID(p - from, userIds.get(colUsers.get(p)));
+			rs.setValue(p - from, colValues.get(p));
+		}
+		return rs;
+	}
+
+	@Override
+	public Float getPreferenceValue(long userID, long itemID) throws TasteException {
+		int u = user(userID);
+		int i = find(itemIds, 0, numItems, itemID);
+		if (i < 0) {
+			return null;
+		}
+		int p = find(rowItems, rowStart.get(u), rowStart.get(u + 1), i);
+		return p < 0 ? null : rowValues.get(p);
+	}
+
+	@Override
+	public Long getPreferenceTime(long userID, long itemID) {
+		return null;
+	}
+
+	@Override
+	public int getNumItems() {
+		return numItems;
+	}
+
+	@Override
+	public int getNumUsers() {
+		return numUsers;
+	}
+
+	@Override
+	public int getNumUsersWithPreferenceFor(long itemID) throws TasteException {
+		int i = item(itemID);
+		return colStart.get(i + 1) - colStart.get(i);
+	}
+
+	/**
+	 * Size of the intersection of the two sorted columns.
+	 */
+	@Override
+	public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) throws TasteException {
+		int i1 = item(itemID1);
+		int i2 = item(itemID2);
+		int p = colStart.get(i1);
+		int pEnd = colStart.get(i1 + 1);
+		int q = colStart.get(i2);
+		int qEnd = colStart.get(i2 + 1);
+		int count = 0;
+		while (p < pEnd && q < qEnd) {
+			int a = colUsers.get(p);
+			int b = colUsers.get(q);
+			if (a < b) {
+				p++;
+			} else if (a > b) {
+				q++;
+			} else {
+				count++;
+				p++;
+				q++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void setPreference(long userID, long itemID, float value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void removePreference(long userID, long itemID) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean hasPreferenceValues() {
+		return true;
+	}
+
+	@Override
+	public float getMaxPreference() {
+		return maxPreference;
+	}
+
+	@Override
+	public float getMinPreference() {
+		return minPreference;
+	}
+
+	@Override
+	public void refresh(Collection<Refreshable> alreadyRefreshed) {
+		// a new version of the ratings is written to a new store, not into this one
+	}
+
+	@Override
+	public String toString() {
+		return "MappedDataModel[users:" + numUsers + ", items:" + numItems + ", ratings:" + numRatings + "]";
+	}
+
+	private static class IdIterator implements LongPrimitiveIterator {
+		private final IntBuffer ids;
+		private final int size;
+		private int next = 0;
+
+		IdIterator(IntBuffer ids, int size) {
+			this.ids = ids;
+			this.size = size;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public long nextLong() {
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			return ids.get(next++);
+		}
+
+		@Override
+		public Long next() {
+			return nextLong();
+		}
+
+		@Override
+		public long peek() {
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			return ids.get(next);
+		}
+
+		@Override
+		public void skip(int n) {
+			next = Math.min(size, next + n);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
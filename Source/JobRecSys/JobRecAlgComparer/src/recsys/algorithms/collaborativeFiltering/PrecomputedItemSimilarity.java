@@ -0,0 +1,365 @@
+package recsys.algorithms.collaborativeFiltering;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+
+import recsys.algorithms.TopKAccumulator;
+
+import utils.AtomicFileWriter;
+import utils.WorkerPool;
+
+/**
+ * Item-item similarities computed ahead of time: for every item only its k
+ * most similar items whose similarity reaches a threshold are kept, in
+ * arrays by item (items sorted by id, the neighbours of an item sorted by id
+ * too). Lookups are binary searches, so the item-based recommender no longer
+ * computes a similarity per item pair and per user.
+ *
+ * The neighbours of an item are searched among the items rated by a user who
+ * also rated it, as Mahout's own candidate strategies do; items without such
+ * a user have no defined similarity for the Mahout measures anyway. Pairs
+ * that were not kept have similarity NaN, like in GenericItemSimilarity.
+ *
+ * The result is saved to a binary file in the dataset folder (item ids and
+ * similarities as int and float) and reused by later tasks as long as the
+ * measure, the thresholds and the rating file are the same.
+ */
+public class PrecomputedItemSimilarity implements ItemSimilarity {
+	private static Logger log = Logger.getLogger(PrecomputedItemSimilarity.class.getName());
+
+	private static final int FORMAT = 0x43464953; // "CFIS"
+
+	public static final int DEFAULT_TOP_K = 50;
+
+	private final int[] items;
+	private final int[] rowStart;
+	private final int[] neighbours;
+	private final float[] similarities;
+
+	private PrecomputedItemSimilarity(int[] items, int[] rowStart, int[] neighbours, float[] similarities) {
+		this.items = items;
+		this.rowStart = rowStart;
+		this.neighbours = neighbours;
+		this.similarities = similarities;
+	}
+
+	/**
+	 * Computes the top k neighbours of every item of the data model with
+	 * similarity >= minSimilarity, on a fork/join pool of the given size (the
+	 * shared WorkerPool if threads is 0).
+	 */
+	public static PrecomputedItemSimilarity compute(final DataModel dataModel, final ItemSimilarity similarity,
+			final int topK, final double minSimilarity, int threads) throws TasteException {
+		long start = System.currentTimeMillis();
+		final int[] items = new int[dataModel.getNumItems()];
+		int n = 0;
+		LongPrimitiveIterator it = dataModel.getItemIDs();
+		while (it.hasNext() && n < items.length) {
+			items[n++] = (int) it.nextLong();
+		}
+		Arrays.sort(items, 0, n);
+		final int[][] rowNeighbours = new int[n][];
+		final float[][] rowSimilarities = new float[n][];
+		ForkJoinPool pool = WorkerPool.acquire(threads);
+		try {
+			pool.invoke(new ItemBlock(dataModel, similarity, topK, minSimilarity, items, rowNeighbours,
+					rowSimilarities, 0, n, Math.max(1, n / (pool.getParallelism() * 8))));
+		} finally {
+			WorkerPool.release(pool);
+		}
+
+		int[] rowStart = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			rowStart[i + 1] = rowStart[i] + rowNeighbours[i].length;
+		}
+		int[] neighbours = new int[rowStart[n]];
+		float[] values = new float[rowStart[n]];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(rowNeighbours[i], 0, neighbours, rowStart[i], rowNeighbours[i].length);
+			System.arraycopy(rowSimilarities[i], 0, values, rowStart[i], rowSimilarities[i].length);
+		}
+		PrecomputedItemSimilarity rs = new PrecomputedItemSimilarity(Arrays.copyOf(items, n), rowStart, neighbours,
+				values);
+		log.info("Precomputed item similarities in " + (System.currentTimeMillis() - start) + " ms: "
+				+ rs.getStatistics());
+		return rs;
+	}
+
+	private static class ItemBlock extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final DataModel dataModel;
+		private final ItemSimilarity similarity;
+		private final int topK;
+		private final double minSimilarity;
+		private final int[] items;
+		private final int[][] rowNeighbours;
+		private final float[][] rowSimilarities;
+		private final int from;
+		private final int to;
+		private final int blockSize;
+
+		ItemBlock(DataModel dataModel, ItemSimilarity similarity, int topK, double minSimilarity, int[] items,
+				int[][] rowNeighbours, float[][] rowSimilarities, int from, int to, int blockSize) {
+			this.dataModel = dataModel;
+			this.similarity = similarity;
+			this.topK = topK;
+			this.minSimilarity = minSimilarity;
+			this.items = items;
+			this.rowNeighbours = rowNeighbours;
+			this.rowSimilarities = rowSimilarities;
+			this.from = from;
+			this.to = to;
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > blockSize) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ItemBlock(dataModel, similarity, topK, minSimilarity, items, rowNeighbours,
+						rowSimilarities, from, mid, blockSize),
+						new ItemBlock(dataModel, similarity, topK, minSimilarity, items, rowNeighbours,
+								rowSimilarities, mid, to, blockSize));
+				return;
+			}
+			TopKAccumulator top = new TopKAccumulator(topK);
+			int[] ids = new int[topK];
+			float[] scores = new float[topK];
+			for (int i = from; i < to; i++) {
+				top.reset();
+				try {
+					long item = items[i];
+					long[] candidates = coRatedItems(item);
+					double[] values = similarity.itemSimilarities(item, candidates);
+					for (int c = 0; c < candidates.length; c++) {
+						float value = (float) values[c];
+						if (value >= minSimilarity && top.accepts(value)) {
+							top.offer((int) candidates[c], value);
+						}
+					}
+				} catch (TasteException e) {
+					log.error(e);
+				}
+				int count = top.sorted(ids, scores);
+				sortById(ids, scores, count);
+				rowNeighbours[i] = Arrays.copyOf(ids, count);
+				rowSimilarities[i] = Arrays.copyOf(scores, count);
+			}
+		}
+
+		/**
+		 * Items rated by at least one user who rated item, item excluded.
+		 */
+		private long[] coRatedItems(long item) throws TasteException {
+			PreferenceArray raters = dataModel.getPreferencesForItem(item);
+			FastIDSet rs = new FastIDSet();
+			for (int u = 0; u < raters.length(); u++) {
+				LongPrimitiveIterator it = dataModel.getItemIDsFromUser(raters.getUserID(u)).iterator();
+				while (it.hasNext()) {
+					long other = it.nextLong();
+					if (other != item) {
+						rs.add(other);
+					}
+				}
+			}
+			return rs.toArray();
+		}
+	}
+
+	/**
+	 * Insertion sort of the first count entries by id; rows are at most k long.
+	 */
+	private static void sortById(int[] ids, float[] scores, int count) {
+		for (int i = 1; i < count; i++) {
+			int id = ids[i];
+			float score = scores[i];
+			int j = i - 1;
+			while (j >= 0 && ids[j] > id) {
+				ids[j + 1] = ids[j];
+				scores[j + 1] = scores[j];
+				j--;
+			}
+			ids[j + 1] = id;
+			scores[j + 1] = score;
+		}
+	}
+
+	/**
+	 * Loads the similarities of file if it was computed with the same
+	 * parameters from the current ratings, else computes and saves them.
+	 *
+	 * @param ratings
+	 *            the rating file of the data model; its size and date tell
+	 *            whether the stored similarities are stale
+	 * @param measure
+	 *            name of the similarity measure (cf.similarity)
+	 */
+	public static PrecomputedItemSimilarity loadOrCompute(File file, File ratings, String measure,
+			DataModel dataModel, ItemSimilarity similarity, int topK, double minSimilarity, int threads)
+			throws TasteException {
+		String key = measure + "|" + topK + "|" + minSimilarity + "|" + ratings.length() + "|"
+				+ ratings.lastModified();
+		try {
+			PrecomputedItemSimilarity rs = load(file, key);
+			if (rs != null) {
+				log.info("Loaded item similarities from " + file + ": " + rs.getStatistics());
+				return rs;
+			}
+		} catch (IOException e) {
+			log.error(e);
+		}
+		PrecomputedItemSimilarity rs = compute(dataModel, similarity, topK, minSimilarity, threads);
+		try {
+			rs.save(file, key);
+		} catch (IOException e) {
+			log.error(e);
+		}
+		return rs;
+	}
+
+	/**
+	 * Writes the similarities with a key describing how they were computed.
+	 */
+	public void save(File file, String key) throws IOException {
+		AtomicFileWriter.write(file, new AtomicFileWriter.Content() {
+			@Override
+			public void write(DataOutputStream out) throws IOException {
+				out.writeInt(FORMAT);
+				out.writeUTF(key);
+				out.writeInt(items.length);
+				out.writeInt(neighbours.length);
+				for (int i = 0; i < items.length; i++) {
+					out.writeInt(items[i]);
+					out.writeInt(rowStart[i + 1] - rowStart[i]);
+					for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+						out.writeInt(neighbours[p]);
+						out.writeFloat(similarities[p]);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return null if there is no file or it was saved with another key
+	 */
+	public static PrecomputedItemSimilarity load(File file, String key) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != FORMAT || !key.equals(in.readUTF())) {
+				return null;
+			}
+			int numItems = in.readInt();
+			int numPairs = in.readInt();
+			int[] items = new int[numItems];
+			int[] rowStart = new int[numItems + 1];
+			int[] neighbours = new int[numPairs];
+			float[] similarities = new float[numPairs];
+			for (int i = 0; i < numItems; i++) {
+				items[i] = in.readInt();
+				rowStart[i + 1] = rowStart[i] + in.readInt();
+				for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+					neighbours[p] = in.readInt();
+					similarities[p] = in.readFloat();
+				}
+			}
+			return new PrecomputedItemSimilarity(items, rowStart, neighbours, similarities);
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getNumItems() {
+		return items.length;
+	}
+
+	public int getNumPairs() {
+		return neighbours.length;
+	}
+
+	public String getStatistics() {
+		return items.length + " items, " + neighbours.length + " pairs, "
+				+ (4L * items.length + 4L * rowStart.length + 8L * neighbours.length) / 1024 + " KB";
+	}
+
+	private int row(long item) {
+		if (item < Integer.MIN_VALUE || item > Integer.MAX_VALUE) {
+			return -1;
+		}
+		return Arrays.binarySearch(items, (int) item);
+	}
+
+	/**
+	 * Similarity of a kept pair; a pair is found when either item has the
+	 * other among its neighbours.
+	 */
+	@Override
+	public double itemSimilarity(long itemID1, long itemID2) {
+		int r = row(itemID1);
+		if (r >= 0 && itemID2 >= Integer.MIN_VALUE && itemID2 <= Integer.MAX_VALUE) {
+			int p = Arrays.binarySearch(neighbours, rowStart[r], rowStart[r + 1], (int) itemID2);
+			if (p >= 0) {
+				return similarities[p];
+			}
+		}
+		r = row(itemID2);
+		if (r >= 0 && itemID1 >= Integer.MIN_VALUE && itemID1 <= Integer.MAX_VALUE) {
+			int p = Arrays.binarySearch(neighbours, rowStart[r], rowStart[r + 1], (int) itemID1);
+			if (p >= 0) {
+				return similarities[p];
+			}
+		}
+		return Double.NaN;
+	}
+
+	@Override
+	public double[] itemSimilarities(long itemID1, long[] itemID2s) {
+		double[] rs = new double[itemID2s.length];
+		for (int i = 0; i < itemID2s.length; i++) {
+			rs[i] = itemSimilarity(itemID1, itemID2s[i]);
+		}
+		return rs;
+	}
+
+	/**
+	 * The kept neighbours of the item, which is what
+	 * AllSimilarItemsCandidateItemsStrategy recommends from.
+	 */
+	@Override
+	public long[] allSimilarItemIDs(long itemID) {
+		int r = row(itemID);
+		if (r < 0) {
+			return new long[0];
+		}
+		long[] rs = new long[rowStart[r + 1] - rowStart[r]];
+		for (int p = rowStart[r]; p < rowStart[r + 1]; p++) {
+			rs[p - rowStart[r]] = neighbours[p];
+		}
+		return rs;
+	}
+
+	@Override
+	public void refresh(Collection<Refreshable> alreadyRefreshed) {
+		// computed once from the ratings file
+	}
+}
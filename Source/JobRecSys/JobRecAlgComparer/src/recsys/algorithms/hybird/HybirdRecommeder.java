@@ -2,15 +2,21 @@ package recsys.algorithms.hybird;
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 
 import recsys.algorithms.RecommendationAlgorithm;
 import recsys.algorithms.cbf.CB;
-import recsys.algorithms.cbf.CBTopNJobs;
 import recsys.algorithms.cbf.CbRecommededList;
 import recsys.algorithms.collaborativeFiltering.CollaborativeFiltering;
 
@@ -26,60 +32,170 @@ public class HybirdRecommeder extends RecommendationAlgorithm {
 	public void init() {
 		cbRecommender = new CB(inputDirectory, outputDirectory, taskId, false, this.startTime);
 		cbRecommender.setRunningEvaluation(this.isRunningEvaluation);
+	}
+
+	/**
+	 * Builds the CF model; called on the CF branch of run() so that it
+	 * overlaps with the CB model.
+	 */
+	private void initCF() {
 		cfRecommender = new CollaborativeFiltering(this.inputDirectory, this.outputDirectory, taskId, startTime);
 		cfRecommender.setRunningEvaluation(this.isRunningEvaluation);
 	}
 
 	private HashMap<String, List<RecommendedItem>> cfResults = new HashMap<String, List<RecommendedItem>>();
 
+	/**
+	 * Writes the hybrid top-N of every user. hb.alpha may be a comma
+	 * separated list: the candidates are fused once for all alphas, the first
+	 * alpha goes to Score.txt (and the database) and every other one to
+	 * Score_alpha<alpha>.txt, so alphas can be compared without running CF
+	 * and CB again.
+	 */
 	public void writeResult(String path, HashMap<String, CbRecommededList> rss) {
 		try {
 
 			int topN = Integer.parseInt(this.config.getProperty("topn"));
-			FileWriter fw = new FileWriter(path + "Score.txt", true);
+			HybridScoreFusion fusion = new HybridScoreFusion(
+					HybridScoreFusion.parseAlphas(config.getProperty("hb.alpha")), topN);
+			FileWriter[] fw = new FileWriter[fusion.getNumAlphas()];
+			fw[0] = new FileWriter(path + "Score.txt", true);
+			for (int a = 1; a < fw.length; a++) {
+				fw[a] = new FileWriter(path + "Score_alpha" + fusion.getAlpha(a) + ".txt", true);
+			}
 			System.out.println("Start writing result!");
-			double alpha = Double.parseDouble(config.getProperty("hb.alpha"));
+			boolean writeToDB = this.isWriteToDB();
+			StringBuilder sql = new StringBuilder("insert into rankedlist(Algorithm, AccountId, JobId, Prediction) values ");
+			boolean hasRows = false;
 
 			for (String i : rss.keySet()) {
-				ArrayList<Double> scores = rss.get(i).getHybridValue(alpha);
-				ArrayList<String> jobs = rss.get(i).getJobsArray();
-				CBTopNJobs topNJobs = new CBTopNJobs(topN);
-				for (int k = 0; k < scores.size(); k++) {
-					topNJobs.add(jobs.get(k), scores.get(k));
-				}
-				for (int k = 0; k < topN; k++) {
-					fw.append(i + "\t" + topNJobs.TopNjob[k] + "\t" + topNJobs.TopNscore[k] + "\r\n");
+				fusion.fuse(rss.get(i));
+				for (int a = 0; a < fw.length; a++) {
+					int[] topJobs = fusion.getJobs(a);
+					float[] topScores = fusion.getScores(a);
+					for (int k = 0; k < fusion.getCount(a); k++) {
+						fw[a].append(i + "\t" + topJobs[k] + "\t" + topScores[k] + "\r\n");
+						if (writeToDB && a == 0) {
+							sql.append("('hb', " + i + "," + topJobs[k] + "," + topScores[k] + "),");
+							hasRows = true;
+						}
+					}
 				}
 			}
 
-			if (this.isWriteToDB()) {
+			for (int a = 0; a < fw.length; a++) {
+				fw[a].close();
+			}
+			if (writeToDB && hasRows) {
 				this.setupDBConnection("recsys");
-				String sql = "insert into rankedlist(Algorithm, AccountId, JobId, Prediction) values ";
-				for (String i : rss.keySet()) {
-					ArrayList<Double> scores = rss.get(i).getHybridValue(alpha);
-					ArrayList<String> jobs = rss.get(i).getJobsArray();
-					CBTopNJobs topNJobs = new CBTopNJobs(topN);
-					for (int k = 0; k < scores.size(); k++) {
-						topNJobs.add(jobs.get(k), scores.get(k));
-					}
-					for (int k = 0; k < topN; k++) {
-						fw.append(i + "\t" + topNJobs.TopNjob[k] + "\t" + topNJobs.TopNscore[k] + "\r\n");
-						sql += "('hb', " + i + "," + topNJobs.TopNjob[k] + "," + topNJobs.TopNscore[k] + "),";
-					}
-				}
 				this.updateDB(sql.substring(0, sql.length() - 1));
 			}
-
-			fw.close();
 		} catch (Exception e) {
 			// TODO: handle exception
 		}
 	}
 
+	// start and end of every pipeline stage in ms since the pipeline started
+	private final Map<String, long[]> stages = new LinkedHashMap<String, long[]>();
+
+	private synchronized void recordStage(String stage, long pipelineStart, long start) {
+		long end = System.currentTimeMillis();
+		stages.put(stage, new long[] { start - pipelineStart, end - pipelineStart });
+		log.info(stage + " took " + (end - start) + " ms");
+	}
+
+	/**
+	 * Logs every stage and the critical path: the CF branch (model, then
+	 * recommendation) and the CB model branch run side by side, so the one
+	 * that finished later is on it together with the stages after the join.
+	 */
+	private synchronized void reportStages(long pipelineStart) {
+		long total = System.currentTimeMillis() - pipelineStart;
+		long[] cf = stages.get(STAGE_CF);
+		long[] cb = stages.get(STAGE_CB_MODEL);
+		StringBuilder path = new StringBuilder();
+		if (cf != null && (cb == null || cf[1] > cb[1])) {
+			path.append(STAGE_CF_MODEL).append(" -> ").append(STAGE_CF);
+		} else if (cb != null) {
+			path.append(STAGE_CB_MODEL);
+		}
+		for (Map.Entry<String, long[]> e : stages.entrySet()) {
+			long[] t = e.getValue();
+			log.info("Stage " + e.getKey() + ": " + t[0] + " - " + t[1] + " ms (" + (t[1] - t[0]) + " ms)");
+			if (!STAGE_CF_MODEL.equals(e.getKey()) && !STAGE_CF.equals(e.getKey())
+					&& !STAGE_CB_MODEL.equals(e.getKey())) {
+				path.append(" -> ").append(e.getKey());
+			}
+		}
+		log.info("Critical path: " + path + ", " + total + " ms in total");
+	}
+
+	private static final String STAGE_CF_MODEL = "CF model";
+	private static final String STAGE_CF = "CF recommendation";
+	private static final String STAGE_CB_MODEL = "CB model";
+	private static final String STAGE_CB_SCORE = "CB scoring";
+	private static final String STAGE_WRITE = "Blend and write";
+
+	/**
+	 * The CF branch (model and recommendation) and the CB model are
+	 * independent and run on two threads; CB scoring needs both and starts
+	 * when the later one is done.
+	 */
 	public void run() {
-		cfResults = cfRecommender.getRecommendedList();
+		final long pipelineStart = System.currentTimeMillis();
+		stages.clear();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
 		try {
-			HashMap<String, CbRecommededList> data = cbRecommender.run(cfResults);
+			CompletableFuture<HashMap<String, List<RecommendedItem>>> cf = CompletableFuture.supplyAsync(
+					new Supplier<HashMap<String, List<RecommendedItem>>>() {
+						@Override
+						public HashMap<String, List<RecommendedItem>> get() {
+							long start = System.currentTimeMillis();
+							initCF();
+							recordStage(STAGE_CF_MODEL, pipelineStart, start);
+							start = System.currentTimeMillis();
+							HashMap<String, List<RecommendedItem>> rs = cfRecommender.getRecommendedList();
+							recordStage(STAGE_CF, pipelineStart, start);
+							return rs;
+						}
+					}, executor);
+			CompletableFuture<Boolean> cbModel = CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+				@Override
+				public Boolean get() {
+					long start = System.currentTimeMillis();
+					try {
+						return cbRecommender.buildModel();
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					} finally {
+						recordStage(STAGE_CB_MODEL, pipelineStart, start);
+					}
+				}
+			}, executor);
+			HashMap<String, CbRecommededList> data = cf.thenCombine(cbModel,
+					new BiFunction<HashMap<String, List<RecommendedItem>>, Boolean, HashMap<String, CbRecommededList>>() {
+						@Override
+						public HashMap<String, CbRecommededList> apply(HashMap<String, List<RecommendedItem>> cfResults,
+								Boolean built) {
+							if (!built) {
+								return null;
+							}
+							HybirdRecommeder.this.cfResults = cfResults;
+							long start = System.currentTimeMillis();
+							try {
+								return cbRecommender.score(cfResults);
+							} catch (IOException e) {
+								throw new CompletionException(e);
+							} finally {
+								recordStage(STAGE_CB_SCORE, pipelineStart, start);
+							}
+						}
+					}).join();
+			if (data == null) {
+				log.error("CB model could not be built");
+				return;
+			}
+			long start = System.currentTimeMillis();
 			if (this.isRunningEvaluation)
 				writeResult(outputDirectory + "result\\", data);
 			else {
@@ -88,15 +204,15 @@ public class HybirdRecommeder extends RecommendationAlgorithm {
 				updateDB("update task set ExecutionTime = '" + ((System.currentTimeMillis() - this.startTime) / 1000)
 						+ "', Status = 'Done' where TaskId = " + taskId);
 			}
+			recordStage(STAGE_WRITE, pipelineStart, start);
+			reportStages(pipelineStart);
 			log.info("Finish HB");
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		} catch (CompletionException e) {
+			log.error(e.getCause());
+			e.getCause().printStackTrace();
+		} finally {
+			executor.shutdown();
 		}
-
 	}
 
 }
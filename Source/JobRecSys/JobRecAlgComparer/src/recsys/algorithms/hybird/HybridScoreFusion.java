@@ -0,0 +1,95 @@
+package recsys.algorithms.hybird;
+
+import recsys.algorithms.TopKAccumulator;
+import recsys.algorithms.cbf.CbRecommededList;
+
+/**
+ * Blends the CF rating and the CB score of the candidates of one user for
+ * several alphas at once:
+ * hybrid = alpha * cf + (1 - alpha) * (1 + 4 * cb / cbMax).
+ * The rescaled CB score is computed once per candidate and offered to one
+ * top-N heap per alpha, so every alpha gets its ranked list from a single
+ * pass over the candidates. Heaps and output arrays are reused from user to
+ * user.
+ */
+public class HybridScoreFusion {
+
+	private final double[] alphas;
+	private final TopKAccumulator[] heaps;
+	private final int[][] jobs;
+	private final float[][] scores;
+	private final int[] counts;
+
+	public HybridScoreFusion(double[] alphas, int topN) {
+		this.alphas = alphas.clone();
+		heaps = new TopKAccumulator[alphas.length];
+		jobs = new int[alphas.length][topN];
+		scores = new float[alphas.length][topN];
+		counts = new int[alphas.length];
+		for (int a = 0; a < alphas.length; a++) {
+			heaps[a] = new TopKAccumulator(topN);
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of alphas, e.g. "0.3,0.5,0.7".
+	 */
+	public static double[] parseAlphas(String value) {
+		String[] parts = value.split(",");
+		double[] rs = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			rs[i] = Double.parseDouble(parts[i].trim());
+		}
+		return rs;
+	}
+
+	public int getNumAlphas() {
+		return alphas.length;
+	}
+
+	public double getAlpha(int a) {
+		return alphas[a];
+	}
+
+	/**
+	 * Ranks the candidates of one user for every alpha; the lists are read
+	 * with getCount, getJobs and getScores until the next call.
+	 */
+	public void fuse(CbRecommededList candidates) {
+		for (int a = 0; a < heaps.length; a++) {
+			heaps[a].reset();
+		}
+		int size = candidates.size();
+		double scale = 4.0d / candidates.getMax_score();
+		for (int k = 0; k < size; k++) {
+			int job = candidates.getJobId(k);
+			double cf = candidates.getOriginalScore(k);
+			double cb = 1.0d + candidates.getScore(k) * scale;
+			for (int a = 0; a < alphas.length; a++) {
+				double s = alphas[a] * cf + (1.0d - alphas[a]) * cb;
+				// only positive scores are ranked, as in CBTopNJobs
+				if (s > 0 && heaps[a].accepts((float) s)) {
+					heaps[a].offer(job, (float) s);
+				}
+			}
+		}
+		for (int a = 0; a < heaps.length; a++) {
+			counts[a] = heaps[a].sorted(jobs[a], scores[a]);
+		}
+	}
+
+	public int getCount(int a) {
+		return counts[a];
+	}
+
+	/**
+	 * Job ids of alpha a by decreasing hybrid score.
+	 */
+	public int[] getJobs(int a) {
+		return jobs[a];
+	}
+
+	public float[] getScores(int a) {
+		return scores[a];
+	}
+}
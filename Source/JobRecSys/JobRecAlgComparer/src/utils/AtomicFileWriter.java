@@ -0,0 +1,102 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes the binary files shared by the tasks of a dataset (models, stores,
+ * caches). The content goes to a temporary file with a unique name in the
+ * same directory, which is then moved over the target in one step, so two
+ * tasks writing the same file never write into each other's data and a
+ * reader sees either the old or the new file, never a partial one.
+ *
+ * Windows cannot replace a file that another task has open or mapped, so
+ * files that are mapped are given versioned names and written with create(),
+ * which never replaces.
+ */
+public final class AtomicFileWriter {
+
+	public interface Content {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private AtomicFileWriter() {
+	}
+
+	public static void write(File file, Content content) throws IOException {
+		File tmp = writeTemporary(file, content);
+		boolean moved = false;
+		try {
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			moved = true;
+		} finally {
+			if (!moved) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes file unless it exists. Several tasks may write the same file at
+	 * once; the first one to finish creates it and the others drop their copy.
+	 * On POSIX file systems the atomic move may still replace a copy created
+	 * in the meantime, which is harmless for identical content: a mapped file
+	 * stays valid after it is replaced there.
+	 *
+	 * @return false if the file already existed
+	 */
+	public static boolean create(File file, Content content) throws IOException {
+		if (file.exists()) {
+			return false;
+		}
+		File tmp = writeTemporary(file, content);
+		try {
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath());
+			}
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static File writeTemporary(File file, Content content) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists()) {
+			dir.mkdirs();
+		}
+		File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+		boolean written = false;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				content.write(out);
+			} finally {
+				out.close();
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				tmp.delete();
+			}
+		}
+		return tmp;
+	}
+}
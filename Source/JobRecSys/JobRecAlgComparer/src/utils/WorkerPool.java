@@ -0,0 +1,38 @@
+package utils;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The fork/join pool shared by the CPU-bound stages of the recommenders, one
+ * worker per core. Stages that run at the same time, such as CF and the CB
+ * model in the hybrid recommender, share its workers instead of each starting
+ * a pool as large as the machine.
+ */
+public final class WorkerPool {
+
+	private static final ForkJoinPool SHARED = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private WorkerPool() {
+	}
+
+	public static ForkJoinPool getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * A pool of its own with the given number of workers, or the shared pool
+	 * if threads is 0 or less. Hand it back to release() when done.
+	 */
+	public static ForkJoinPool acquire(int threads) {
+		return threads > 0 ? new ForkJoinPool(threads) : SHARED;
+	}
+
+	/**
+	 * Shuts down a pool from acquire() unless it is the shared one.
+	 */
+	public static void release(ForkJoinPool pool) {
+		if (pool != SHARED) {
+			pool.shutdown();
+		}
+	}
+}